@@ -1,19 +1,25 @@
 package net.defade.rhenium;
 
-import io.kubernetes.client.openapi.ApiClient;
 import io.kubernetes.client.openapi.ApiException;
-import io.kubernetes.client.openapi.Configuration;
-import io.kubernetes.client.openapi.apis.CoreV1Api;
 import io.kubernetes.client.openapi.models.V1Namespace;
+import io.kubernetes.client.openapi.models.V1NamespaceList;
 import io.kubernetes.client.openapi.models.V1ObjectMeta;
-import io.kubernetes.client.util.Config;
+import net.defade.rhenium.config.ClusterTarget;
 import net.defade.rhenium.config.RheniumConfig;
+import net.defade.rhenium.kubernetes.KubernetesCluster;
+import net.defade.rhenium.kubernetes.KubernetesGateway;
+import net.defade.rhenium.kubernetes.RequestPriority;
+import net.defade.rhenium.notifications.NotificationPipeline;
+import net.defade.rhenium.profiling.ProfilingEndpoint;
+import net.defade.rhenium.proxies.ProxyRegistry;
 import net.defade.rhenium.rest.RestServer;
 import net.defade.rhenium.servers.ServerManager;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Timer;
 
 public class Rhenium {
@@ -21,9 +27,11 @@ public class Rhenium {
 
     private final RheniumConfig rheniumConfig;
 
-    private final CoreV1Api k8sApi;
+    private final List<KubernetesCluster> kubernetesClusters;
 
     private final RestServer restServer;
+    private final NotificationPipeline notificationPipeline;
+    private final ProxyRegistry proxyRegistry;
     private final Timer timer = new Timer();
     private final ServerManager serverManager;
 
@@ -31,11 +39,17 @@ public class Rhenium {
         this.rheniumConfig = rheniumConfig;
 
         this.restServer = new RestServer("0.0.0.0", 6000); // TODO: make those configurable?
-        this.serverManager = new ServerManager(this);
+        this.notificationPipeline = new NotificationPipeline(restServer);
+        new ProfilingEndpoint(restServer);
+
+        List<KubernetesCluster> kubernetesClusters = new ArrayList<>();
+        for (ClusterTarget clusterTarget : rheniumConfig.getClusterTargets()) {
+            kubernetesClusters.add(new KubernetesCluster(clusterTarget, rheniumConfig));
+        }
+        this.kubernetesClusters = List.copyOf(kubernetesClusters);
 
-        ApiClient client = Config.defaultClient();
-        Configuration.setDefaultApiClient(client);
-        this.k8sApi = new CoreV1Api();
+        this.proxyRegistry = new ProxyRegistry(this);
+        this.serverManager = new ServerManager(this);
     }
 
     public void start() throws ApiException {
@@ -43,13 +57,21 @@ public class Rhenium {
 
         restServer.start();
 
-        // TODO: check if the k8s client is connected
-        // Check if the k8s namespace exists, if not create it
-        if (k8sApi.listNamespace().execute().getItems().stream().noneMatch(ns -> ns.getMetadata().getName().equals(rheniumConfig.getK8sNamespace()))) {
-            LOGGER.info("Namespace {} does not exist, creating it...", rheniumConfig.getK8sNamespace());
-            k8sApi.createNamespace(new V1Namespace().metadata(new V1ObjectMeta().name(rheniumConfig.getK8sNamespace())));
+        // A cluster that can't be reached is only skipped, the servers will be created in the other clusters
+        ApiException lastException = null;
+        int reachableClusters = 0;
+        for (KubernetesCluster kubernetesCluster : kubernetesClusters) {
+            try {
+                createNamespace(kubernetesCluster);
+                reachableClusters++;
+            } catch (ApiException exception) {
+                LOGGER.error("Failed to check the namespace of the cluster {}.", kubernetesCluster.getName(), exception);
+                lastException = exception;
+            }
         }
+        if (reachableClusters == 0) throw lastException;
 
+        proxyRegistry.start();
         serverManager.start();
 
         LOGGER.info("Rhenium has been started.");
@@ -59,6 +81,24 @@ public class Rhenium {
     public void stop() {
         LOGGER.info("Shutting down Rhenium...");
         timer.cancel();
+        serverManager.stop();
+        notificationPipeline.stop();
+        kubernetesClusters.forEach(KubernetesCluster::stop);
+    }
+
+    /**
+     * Checks if the namespace of the cluster exists, if not creates it.
+     */
+    private static void createNamespace(KubernetesCluster kubernetesCluster) throws ApiException {
+        KubernetesGateway kubernetesGateway = kubernetesCluster.getGateway();
+        String namespaceName = kubernetesCluster.getNamespace();
+
+        V1NamespaceList namespaces = kubernetesGateway.execute(RequestPriority.RECONCILE, (api, callback) -> api.listNamespace().executeAsync(callback));
+        if (namespaces.getItems().stream().noneMatch(ns -> ns.getMetadata().getName().equals(namespaceName))) {
+            LOGGER.info("Namespace {} does not exist in the cluster {}, creating it...", namespaceName, kubernetesCluster.getName());
+            V1Namespace namespace = new V1Namespace().metadata(new V1ObjectMeta().name(namespaceName));
+            kubernetesGateway.<V1Namespace>execute(RequestPriority.RECONCILE, (api, callback) -> api.createNamespace(namespace).executeAsync(callback));
+        }
     }
 
     public RheniumConfig getRheniumConfig() {
@@ -69,8 +109,27 @@ public class Rhenium {
         return restServer;
     }
 
-    public CoreV1Api getKubernetesClient() {
-        return k8sApi;
+    public NotificationPipeline getNotificationPipeline() {
+        return notificationPipeline;
+    }
+
+    public ProxyRegistry getProxyRegistry() {
+        return proxyRegistry;
+    }
+
+    /**
+     * @return the clusters the servers can be created in, the Velocity proxies are looked up in all of them
+     */
+    public List<KubernetesCluster> getKubernetesClusters() {
+        return kubernetesClusters;
+    }
+
+    public KubernetesCluster getKubernetesCluster(String name) {
+        for (KubernetesCluster kubernetesCluster : kubernetesClusters) {
+            if (kubernetesCluster.getName().equals(name)) return kubernetesCluster;
+        }
+
+        return null;
     }
 
     public Timer getTimer() {
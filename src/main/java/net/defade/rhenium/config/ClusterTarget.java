@@ -0,0 +1,31 @@
+package net.defade.rhenium.config;
+
+import com.electronwill.nightconfig.core.CommentedConfig;
+
+/**
+ * A Kubernetes cluster and namespace in which the servers can be created.
+ *
+ * @param name the name used in the logs and to find the cluster of a server
+ * @param apiServer the URL of the API server, null to use the default client (kubeconfig or in-cluster configuration)
+ * @param kubeconfig the kubeconfig file used when no API server is set, null to use the default client
+ * @param token the bearer token sent to the API server, null to not authenticate
+ * @param verifySsl if the certificate of the API server should be verified
+ * @param namespace the namespace of the servers
+ * @param weight the share of the new servers created in this cluster compared to the other clusters
+ * @param maxPods the maximum amount of server pods in this cluster, 0 for no limit
+ */
+public record ClusterTarget(String name, String apiServer, String kubeconfig, String token, boolean verifySsl,
+                            String namespace, int weight, int maxPods) {
+    public static ClusterTarget fromConfig(CommentedConfig clusterConfig, String defaultNamespace) {
+        return new ClusterTarget(
+            clusterConfig.get("name"),
+            clusterConfig.get("api-server"),
+            clusterConfig.get("kubeconfig"),
+            clusterConfig.get("token"),
+            clusterConfig.getOrElse("verify-ssl", true),
+            clusterConfig.getOrElse("namespace", defaultNamespace),
+            Math.max(1, clusterConfig.getIntOrElse("weight", 1)),
+            clusterConfig.getIntOrElse("max-pods", 0)
+        );
+    }
+}
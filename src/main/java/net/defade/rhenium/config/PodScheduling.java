@@ -0,0 +1,67 @@
+package net.defade.rhenium.config;
+
+import com.electronwill.nightconfig.core.CommentedConfig;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Resource limits and scheduling constraints applied to the pods of a server template.
+ *
+ * @param cpuLimit in cores, 0 to not set a limit
+ * @param memoryLimit in Mi, 0 to not set a limit
+ * @param guaranteed if the limits should be equal to the requests, giving the pod the Guaranteed QoS class
+ * @param priorityClassName the priority class of the pods, null to use the cluster default
+ * @param antiAffinity how strongly pods of the same template should avoid sharing a node
+ * @param topologySpreadKey the node label used to spread the pods of the template, null to disable
+ * @param maxSkew the maximum difference of pods between two topology domains
+ */
+public record PodScheduling(int cpuLimit, int memoryLimit, boolean guaranteed, String priorityClassName,
+                            AntiAffinity antiAffinity, String topologySpreadKey, int maxSkew,
+                            Map<String, String> nodeSelector, List<Toleration> tolerations) {
+    public PodScheduling {
+        nodeSelector = Map.copyOf(nodeSelector);
+        tolerations = List.copyOf(tolerations);
+    }
+
+    public static PodScheduling fromConfig(CommentedConfig serverConfig) {
+        Map<String, String> nodeSelector = new HashMap<>();
+        CommentedConfig nodeSelectorConfig = serverConfig.get("node-selector");
+        if (nodeSelectorConfig != null) {
+            nodeSelectorConfig.valueMap().forEach((key, value) -> nodeSelector.put(key, value.toString()));
+        }
+
+        List<Toleration> tolerations = new ArrayList<>();
+        List<CommentedConfig> tolerationsConfig = serverConfig.getOrElse("tolerations", List.of());
+        for (CommentedConfig tolerationConfig : tolerationsConfig) {
+            tolerations.add(new Toleration(
+                tolerationConfig.get("key"),
+                tolerationConfig.getOrElse("operator", "Equal"),
+                tolerationConfig.get("value"),
+                tolerationConfig.get("effect")
+            ));
+        }
+
+        return new PodScheduling(
+            serverConfig.getIntOrElse("cpu-limit", 0),
+            serverConfig.getIntOrElse("memory-limit", 0),
+            serverConfig.getOrElse("guaranteed", false),
+            serverConfig.get("priority-class"),
+            AntiAffinity.valueOf(serverConfig.getOrElse("anti-affinity", "none").toUpperCase(Locale.ROOT)),
+            serverConfig.get("topology-spread-key"),
+            serverConfig.getIntOrElse("max-skew", 1),
+            nodeSelector,
+            tolerations
+        );
+    }
+
+    public enum AntiAffinity {
+        NONE,
+        PREFERRED,
+        REQUIRED
+    }
+
+    public record Toleration(String key, String operator, String value, String effect) { }
+}
@@ -2,6 +2,10 @@ package net.defade.rhenium.config;
 
 import com.electronwill.nightconfig.core.CommentedConfig;
 import com.electronwill.nightconfig.core.file.CommentedFileConfig;
+import com.electronwill.nightconfig.core.file.FileWatcher;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import java.io.IOException;
 import java.net.URL;
 import java.nio.file.Path;
 import java.util.ArrayList;
@@ -10,22 +14,114 @@ import java.util.List;
 import java.util.Map;
 
 public class RheniumConfig {
+    private static final Logger LOGGER = LogManager.getLogger(RheniumConfig.class);
+
+    private final CommentedFileConfig config;
+
     private String k8sNamespace;
     private String dockerRegistrySecretName;
-    private final Map<String, ServerTemplate> serverTemplates = new HashMap<>();
+    private double k8sQps;
+    private int k8sBurst;
+    private int k8sMaxInFlight;
+    private int k8sMaxRetries;
+    private List<ClusterTarget> clusterTargets;
+    private Path logArchiveDirectory;
+    private long logArchiveMaxFileSize;
+    private int logArchiveMaxFiles;
+    private int logArchiveThreads;
+    private int logArchiveQueueSize;
+    private int logArchiveTimeout;
+    private long resyncInterval;
+    private boolean recordingEnabled;
+    private Path recordingDirectory;
+    private volatile Map<String, ServerTemplate> serverTemplates = Map.of();
 
     public RheniumConfig(CommentedFileConfig config) {
+        this.config = config;
+
         loadK8sConfig(config.get("k8s"));
+        loadClusterTargets(config.get("clusters"));
         loadServerTemplates(config.get("server-templates"));
+        loadLogArchiveConfig(config.get("log-archive"));
+        loadScalingConfig(config.get("scaling"));
+        loadRecordingConfig(config.get("recording"));
+    }
+
+    /**
+     * Reloads the server templates when the configuration file is modified.
+     * The other settings are only read on startup.
+     *
+     * @param reloadListener called after the server templates have been reloaded
+     */
+    public void watch(Runnable reloadListener) {
+        try {
+            FileWatcher.defaultInstance().addWatch(config.getNioPath(), () -> {
+                try {
+                    config.load();
+                    loadServerTemplates(config.get("server-templates"));
+                } catch (Exception exception) {
+                    LOGGER.error("Failed to reload the server templates, keeping the previous ones.", exception);
+                    return;
+                }
+
+                LOGGER.info("Reloaded the server templates.");
+                reloadListener.run();
+            });
+        } catch (IOException exception) {
+            LOGGER.error("Failed to watch the configuration file, the server templates won't be reloaded.", exception);
+        }
     }
 
     private void loadK8sConfig(CommentedConfig k8sConfig) {
         k8sNamespace = k8sConfig.get("namespace");
         dockerRegistrySecretName = k8sConfig.get("docker-registry-secret-name");
+        k8sQps = k8sConfig.<Number>getOrElse("qps", 20).doubleValue();
+        k8sBurst = k8sConfig.getIntOrElse("burst", 40);
+        k8sMaxInFlight = k8sConfig.getIntOrElse("max-in-flight", 16);
+        k8sMaxRetries = k8sConfig.getIntOrElse("max-retries", 5);
+    }
+
+    private void loadClusterTargets(List<CommentedConfig> clustersConfig) {
+        // Without any cluster, the servers are created in the namespace of the k8s section with the default client
+        if (clustersConfig == null || clustersConfig.isEmpty()) {
+            clusterTargets = List.of(new ClusterTarget("default", null, null, null, true, k8sNamespace, 1, 0));
+            return;
+        }
+
+        List<ClusterTarget> clusterTargets = new ArrayList<>();
+        for (CommentedConfig clusterConfig : clustersConfig) {
+            clusterTargets.add(ClusterTarget.fromConfig(clusterConfig, k8sNamespace));
+        }
+        this.clusterTargets = List.copyOf(clusterTargets);
+    }
+
+    private void loadLogArchiveConfig(CommentedConfig logArchiveConfig) {
+        // The section is optional so that older configuration files keep working
+        if (logArchiveConfig == null) logArchiveConfig = CommentedConfig.inMemory();
+
+        logArchiveDirectory = Path.of(logArchiveConfig.getOrElse("directory", "pod-logs"));
+        logArchiveMaxFileSize = logArchiveConfig.getLongOrElse("max-file-size", 16384) * 1024;
+        logArchiveMaxFiles = logArchiveConfig.getIntOrElse("max-files", 500);
+        logArchiveThreads = logArchiveConfig.getIntOrElse("threads", 2);
+        logArchiveQueueSize = logArchiveConfig.getIntOrElse("queue-size", 64);
+        logArchiveTimeout = logArchiveConfig.getIntOrElse("timeout", 30);
+    }
+
+    private void loadScalingConfig(CommentedConfig scalingConfig) {
+        if (scalingConfig == null) scalingConfig = CommentedConfig.inMemory();
+
+        resyncInterval = scalingConfig.getLongOrElse("resync-interval", 10) * 1000;
+    }
+
+    private void loadRecordingConfig(CommentedConfig recordingConfig) {
+        if (recordingConfig == null) recordingConfig = CommentedConfig.inMemory();
+
+        recordingEnabled = recordingConfig.getOrElse("enabled", false);
+        recordingDirectory = Path.of(recordingConfig.getOrElse("directory", "recordings"));
     }
 
     private void loadServerTemplates(CommentedConfig networkSettings) {
-        serverTemplates.clear();
+        Map<String, ServerTemplate> serverTemplates = new HashMap<>();
 
         for (Map.Entry<String, Object> entry : networkSettings.valueMap().entrySet()) {
             String serverName = entry.getKey();
@@ -35,11 +131,21 @@ public class RheniumConfig {
             String dockerImage = serverConfig.get("docker-image");
             int cpus = serverConfig.getInt("cpus");
             int memory = serverConfig.getInt("memory");
+            int maxQueuedPlayers = serverConfig.getIntOrElse("max-queued-players", 200);
+            long scaleToZeroAfter = serverConfig.getLongOrElse("scale-to-zero-after", 0) * 1000;
+            ScalingSettings scalingSettings = ScalingSettings.fromConfig(serverConfig);
+            PodScheduling podScheduling = PodScheduling.fromConfig(serverConfig);
+            if (podScheduling.guaranteed() && (podScheduling.cpuLimit() > 0 || podScheduling.memoryLimit() > 0)) {
+                LOGGER.warn("The server template {} is guaranteed, its cpu-limit and memory-limit are ignored and the requests are used as limits.", serverName);
+            }
 
-            ServerTemplate serverTemplate = new ServerTemplate(serverName, dockerImage, maxPlayers, cpus, memory);
+            ServerTemplate serverTemplate = new ServerTemplate(serverName, dockerImage, maxPlayers, cpus, memory, maxQueuedPlayers,
+                scaleToZeroAfter, scalingSettings, podScheduling);
 
             serverTemplates.put(serverTemplate.templateIdentifier(), serverTemplate);
         }
+
+        this.serverTemplates = Map.copyOf(serverTemplates);
     }
 
     public String getK8sNamespace() {
@@ -50,6 +156,77 @@ public class RheniumConfig {
         return dockerRegistrySecretName;
     }
 
+    /**
+     * @return the maximum amount of requests sent to the Kubernetes API per second
+     */
+    public double getK8sQps() {
+        return k8sQps;
+    }
+
+    public int getK8sBurst() {
+        return k8sBurst;
+    }
+
+    public int getK8sMaxInFlight() {
+        return k8sMaxInFlight;
+    }
+
+    public int getK8sMaxRetries() {
+        return k8sMaxRetries;
+    }
+
+    /**
+     * @return the clusters the servers can be created in, the Velocity proxies are looked up in all of them
+     */
+    public List<ClusterTarget> getClusterTargets() {
+        return clusterTargets;
+    }
+
+    public Path getLogArchiveDirectory() {
+        return logArchiveDirectory;
+    }
+
+    /**
+     * @return the maximum amount of uncompressed bytes stored for a single pod
+     */
+    public long getLogArchiveMaxFileSize() {
+        return logArchiveMaxFileSize;
+    }
+
+    public int getLogArchiveMaxFiles() {
+        return logArchiveMaxFiles;
+    }
+
+    public int getLogArchiveThreads() {
+        return logArchiveThreads;
+    }
+
+    public int getLogArchiveQueueSize() {
+        return logArchiveQueueSize;
+    }
+
+    /**
+     * @return the time in seconds after which a pod is deleted even if its logs are still being captured
+     */
+    public int getLogArchiveTimeout() {
+        return logArchiveTimeout;
+    }
+
+    /**
+     * @return the interval between two reconciliations of every template, in milliseconds
+     */
+    public long getResyncInterval() {
+        return resyncInterval;
+    }
+
+    public boolean isRecordingEnabled() {
+        return recordingEnabled;
+    }
+
+    public Path getRecordingDirectory() {
+        return recordingDirectory;
+    }
+
     public ServerTemplate getTemplateByIdentifier(String identifier) {
         return serverTemplates.get(identifier);
     }
@@ -69,13 +246,17 @@ public class RheniumConfig {
     }
 
     public static RheniumConfig load() {
+        return load(Path.of("config.toml"));
+    }
+
+    public static RheniumConfig load(Path configFile) {
         URL defaultConfigLocation = RheniumConfig.class.getClassLoader()
                 .getResource("config.toml");
         if (defaultConfigLocation == null) {
             throw new RuntimeException("The default configuration file does not exist.");
         }
 
-        CommentedFileConfig config = CommentedFileConfig.builder(Path.of("config.toml"))
+        CommentedFileConfig config = CommentedFileConfig.builder(configFile)
                 .defaultData(defaultConfigLocation)
                 .build();
         config.load();
@@ -0,0 +1,25 @@
+package net.defade.rhenium.config;
+
+import com.electronwill.nightconfig.core.CommentedConfig;
+
+/**
+ * Damping applied to the scaling of a server template, so that player counts oscillating around a threshold don't
+ * make servers be created and stopped repeatedly. Every duration is in milliseconds.
+ *
+ * @param scaleDownDelay the time during which there must be too many servers before one is drained
+ * @param scaleDownCooldown the time after a scale up during which no server is drained
+ * @param minPodLifetime the age under which a server is never drained
+ * @param flapWindow the window in which the deletion flag changes of a server are counted
+ * @param maxFlaps the amount of deletion flag changes in the window after which the server isn't drained anymore until the window has passed
+ */
+public record ScalingSettings(long scaleDownDelay, long scaleDownCooldown, long minPodLifetime, long flapWindow, int maxFlaps) {
+    public static ScalingSettings fromConfig(CommentedConfig serverConfig) {
+        return new ScalingSettings(
+            serverConfig.getLongOrElse("scale-down-delay", 60) * 1000,
+            serverConfig.getLongOrElse("scale-down-cooldown", 120) * 1000,
+            serverConfig.getLongOrElse("min-pod-lifetime", 300) * 1000,
+            serverConfig.getLongOrElse("flap-window", 600) * 1000,
+            serverConfig.getIntOrElse("max-flaps", 3)
+        );
+    }
+}
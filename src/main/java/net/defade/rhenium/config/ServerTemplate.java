@@ -6,8 +6,14 @@ import java.security.NoSuchAlgorithmException;
 
 /**
  * @param memory in Mi
+ * @param maxQueuedPlayers the maximum amount of players waiting for a server of this template
+ * @param scaleToZeroAfter the time in milliseconds without any player after which every server of the template is stopped,
+ *                         0 to always keep servers running
+ * @param scalingSettings the damping applied when scaling down the servers of the template
+ * @param podScheduling the resource limits and the scheduling constraints of the pods of the template
  */
-public record ServerTemplate(String templateName, String dockerImage, int maxPlayers, int cpus, int memory) {
+public record ServerTemplate(String templateName, String dockerImage, int maxPlayers, int cpus, int memory, int maxQueuedPlayers,
+                             long scaleToZeroAfter, ScalingSettings scalingSettings, PodScheduling podScheduling) {
     private static final String BASE62 = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
 
     public String templateIdentifier() {
@@ -0,0 +1,74 @@
+package net.defade.rhenium.kubernetes;
+
+import io.kubernetes.client.openapi.ApiClient;
+import io.kubernetes.client.openapi.apis.CoreV1Api;
+import io.kubernetes.client.util.Config;
+import net.defade.rhenium.config.ClusterTarget;
+import net.defade.rhenium.config.RheniumConfig;
+import java.io.IOException;
+
+/**
+ * A cluster and namespace the servers can be created in, with the gateway used to call its API server.
+ */
+public class KubernetesCluster {
+    private final ClusterTarget clusterTarget;
+    private final ApiClient apiClient;
+    private final KubernetesGateway gateway;
+
+    public KubernetesCluster(ClusterTarget clusterTarget, RheniumConfig rheniumConfig) throws IOException {
+        this.clusterTarget = clusterTarget;
+        this.apiClient = createApiClient();
+        this.gateway = new KubernetesGateway(clusterTarget.name(), new CoreV1Api(apiClient), rheniumConfig);
+    }
+
+    /**
+     * Creates a new client for the API server of the cluster, used by the components that need their own HTTP settings.
+     */
+    public ApiClient createApiClient() throws IOException {
+        if (clusterTarget.apiServer() != null) {
+            return clusterTarget.token() != null
+                ? Config.fromToken(clusterTarget.apiServer(), clusterTarget.token(), clusterTarget.verifySsl())
+                : Config.fromUrl(clusterTarget.apiServer(), clusterTarget.verifySsl());
+        }
+        if (clusterTarget.kubeconfig() != null) {
+            return Config.fromConfig(clusterTarget.kubeconfig());
+        }
+
+        return Config.defaultClient();
+    }
+
+    public String getName() {
+        return clusterTarget.name();
+    }
+
+    public String getNamespace() {
+        return clusterTarget.namespace();
+    }
+
+    public int getWeight() {
+        return clusterTarget.weight();
+    }
+
+    /**
+     * @return the maximum amount of server pods in this cluster, 0 for no limit
+     */
+    public int getMaxPods() {
+        return clusterTarget.maxPods();
+    }
+
+    public ApiClient getApiClient() {
+        return apiClient;
+    }
+
+    public KubernetesGateway getGateway() {
+        return gateway;
+    }
+
+    public boolean isHealthy() {
+        return gateway.isHealthy();
+    }
+
+    public void stop() {
+        gateway.stop();
+    }
+}
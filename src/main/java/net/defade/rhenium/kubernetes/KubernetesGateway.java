@@ -0,0 +1,210 @@
+package net.defade.rhenium.kubernetes;
+
+import io.kubernetes.client.openapi.ApiCallback;
+import io.kubernetes.client.openapi.ApiException;
+import io.kubernetes.client.openapi.apis.CoreV1Api;
+import net.defade.rhenium.config.RheniumConfig;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Every request/response call to the Kubernetes API goes through this class. The streams are the only exception:
+ * the pod watch of {@link net.defade.rhenium.servers.ServerPodWatcher} and the log streams of the pod log archiver stay
+ * open for minutes, so they would hold a slot of the in-flight limit for as long as they are open and block the other calls.
+ * The calls are queued by priority, throttled with a token bucket, executed asynchronously with a bounded amount
+ * of calls in flight, and retried with an exponential backoff when the API server is overloaded or failing.
+ * There is one gateway per cluster, a cluster is considered unhealthy for a while when a call failed after all its retries.
+ */
+public class KubernetesGateway {
+    private static final Logger LOGGER = LogManager.getLogger(KubernetesGateway.class);
+    private static final long BASE_RETRY_DELAY = 200;
+    private static final long MAX_RETRY_DELAY = 10 * 1000;
+    private static final long UNHEALTHY_DURATION = 30 * 1000;
+    private static final int PENDING_CALLS_WARNING = 1000; // A queue this long means the API server can't keep up
+    private static final long PENDING_CALLS_WARNING_INTERVAL = 60 * 1000;
+
+    private final String clusterName;
+    private final CoreV1Api api;
+    private final TokenBucket tokenBucket;
+    private final Semaphore inFlightCalls;
+    private final int maxRetries;
+
+    private final PriorityBlockingQueue<PendingCall<?>> pendingCalls = new PriorityBlockingQueue<>(64,
+        Comparator.<PendingCall<?>, RequestPriority>comparing(PendingCall::priority).thenComparingLong(PendingCall::sequence));
+    private final AtomicLong sequence = new AtomicLong();
+    private final ScheduledExecutorService retryScheduler;
+    private final Thread dispatcherThread;
+    private volatile long unhealthyUntil = 0;
+    private volatile long lastPendingCallsWarning = 0;
+
+    public KubernetesGateway(String clusterName, CoreV1Api api, RheniumConfig rheniumConfig) {
+        this.clusterName = clusterName;
+        this.api = api;
+        this.tokenBucket = new TokenBucket(rheniumConfig.getK8sQps(), rheniumConfig.getK8sBurst());
+        this.inFlightCalls = new Semaphore(rheniumConfig.getK8sMaxInFlight());
+        this.maxRetries = rheniumConfig.getK8sMaxRetries();
+
+        this.retryScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "kubernetes-gateway-retry-" + clusterName);
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        this.dispatcherThread = new Thread(this::dispatchCalls, "kubernetes-gateway-" + clusterName);
+        this.dispatcherThread.setDaemon(true);
+        this.dispatcherThread.start();
+    }
+
+    /**
+     * Queues a call to the Kubernetes API.
+     *
+     * @param priority the priority of the call
+     * @param call the call, it can be executed multiple times if it has to be retried
+     * @return a future completed with the result of the call, or with an {@link ApiException} if it failed
+     */
+    public <T> CompletableFuture<T> submit(RequestPriority priority, ApiCall<T> call) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        pendingCalls.add(new PendingCall<>(priority, sequence.getAndIncrement(), call, future, 0));
+
+        int pendingCallsCount = pendingCalls.size();
+        long now = System.currentTimeMillis();
+        if (pendingCallsCount >= PENDING_CALLS_WARNING && now - lastPendingCallsWarning > PENDING_CALLS_WARNING_INTERVAL) {
+            lastPendingCallsWarning = now;
+            LOGGER.warn("{} Kubernetes API calls are waiting to be sent to the cluster {}.", pendingCallsCount, clusterName);
+        }
+        return future;
+    }
+
+    /**
+     * Queues a call to the Kubernetes API and waits for its result.
+     *
+     * @see #submit(RequestPriority, ApiCall)
+     */
+    public <T> T execute(RequestPriority priority, ApiCall<T> call) throws ApiException {
+        try {
+            return submit(priority, call).get();
+        } catch (ExecutionException exception) {
+            if (exception.getCause() instanceof ApiException apiException) throw apiException;
+            throw new ApiException(exception.getCause());
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new ApiException(exception);
+        }
+    }
+
+    /**
+     * @return false if a call recently failed because the API server couldn't be reached or kept failing
+     */
+    public boolean isHealthy() {
+        return System.currentTimeMillis() >= unhealthyUntil;
+    }
+
+    public void stop() {
+        dispatcherThread.interrupt();
+        retryScheduler.shutdownNow();
+    }
+
+    private void dispatchCalls() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                // Wait for a call before taking a slot, so that no slot nor token is held while idle
+                PendingCall<?> pendingCall = pendingCalls.take();
+                try {
+                    inFlightCalls.acquire();
+                    tokenBucket.acquire();
+                } finally {
+                    pendingCalls.add(pendingCall); // A call with a higher priority may have been queued in the meantime
+                }
+                start(pendingCalls.take());
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private <T> void start(PendingCall<T> pendingCall) {
+        try {
+            pendingCall.call().executeAsync(api, new ApiCallback<>() {
+                @Override
+                public void onFailure(ApiException exception, int statusCode, Map<String, List<String>> responseHeaders) {
+                    inFlightCalls.release();
+                    handleFailure(pendingCall, exception, responseHeaders);
+                }
+
+                @Override
+                public void onSuccess(T result, int statusCode, Map<String, List<String>> responseHeaders) {
+                    inFlightCalls.release();
+                    unhealthyUntil = 0;
+                    pendingCall.future().complete(result);
+                }
+
+                @Override
+                public void onUploadProgress(long bytesWritten, long contentLength, boolean done) { }
+
+                @Override
+                public void onDownloadProgress(long bytesRead, long contentLength, boolean done) { }
+            });
+        } catch (ApiException exception) {
+            inFlightCalls.release();
+            pendingCall.future().completeExceptionally(exception);
+        }
+    }
+
+    private <T> void handleFailure(PendingCall<T> pendingCall, ApiException exception, Map<String, List<String>> responseHeaders) {
+        if (!isRetryable(exception) || pendingCall.attempt() >= maxRetries) {
+            if (isRetryable(exception)) unhealthyUntil = System.currentTimeMillis() + UNHEALTHY_DURATION;
+            pendingCall.future().completeExceptionally(exception);
+            return;
+        }
+
+        long delay = Math.min(MAX_RETRY_DELAY, BASE_RETRY_DELAY << pendingCall.attempt());
+        delay = ThreadLocalRandom.current().nextLong(delay / 2, delay + 1); // Jitter so that the retries don't all happen at once
+        delay = Math.max(delay, getRetryAfter(responseHeaders));
+
+        LOGGER.warn("Kubernetes API call failed with status code {}, retrying in {}ms.", exception.getCode(), delay);
+        retryScheduler.schedule(() -> pendingCalls.add(new PendingCall<>(
+            pendingCall.priority(), pendingCall.sequence(), pendingCall.call(), pendingCall.future(), pendingCall.attempt() + 1
+        )), delay, TimeUnit.MILLISECONDS);
+    }
+
+    private static boolean isRetryable(ApiException exception) {
+        int code = exception.getCode();
+        return code == 0 || code == 429 || code >= 500; // 0 means that the API server couldn't be reached
+    }
+
+    private static long getRetryAfter(Map<String, List<String>> responseHeaders) {
+        if (responseHeaders == null) return 0;
+
+        List<String> retryAfter = responseHeaders.get("Retry-After");
+        if (retryAfter == null || retryAfter.isEmpty()) return 0;
+
+        try {
+            return Math.min(MAX_RETRY_DELAY, TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter.get(0))));
+        } catch (NumberFormatException exception) {
+            return 0;
+        }
+    }
+
+    /**
+     * A call to the Kubernetes API, built from the fluent request builders of {@link CoreV1Api}.
+     * For example: {@code (api, callback) -> api.readNamespacedPod(name, namespace).executeAsync(callback)}
+     */
+    @FunctionalInterface
+    public interface ApiCall<T> {
+        okhttp3.Call executeAsync(CoreV1Api api, ApiCallback<T> callback) throws ApiException;
+    }
+
+    private record PendingCall<T>(RequestPriority priority, long sequence, ApiCall<T> call, CompletableFuture<T> future, int attempt) { }
+}
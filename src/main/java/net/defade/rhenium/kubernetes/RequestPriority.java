@@ -0,0 +1,15 @@
+package net.defade.rhenium.kubernetes;
+
+/**
+ * The priority of a request sent to the Kubernetes API, requests with a higher priority are sent first.
+ */
+public enum RequestPriority {
+    /**
+     * Requests done by the reconcile loop to scale the servers.
+     */
+    RECONCILE,
+    /**
+     * Requests that can be delayed without consequences, like the deletion of terminated pods.
+     */
+    BULK
+}
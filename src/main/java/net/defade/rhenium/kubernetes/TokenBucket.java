@@ -0,0 +1,45 @@
+package net.defade.rhenium.kubernetes;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket refilled at a fixed rate, used to limit the amount of requests per second.
+ */
+public class TokenBucket {
+    private final double tokensPerNano;
+    private final double capacity;
+
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * @param ratePerSecond the amount of tokens added every second
+     * @param capacity the maximum amount of tokens that can be stored, which is the maximum burst
+     */
+    public TokenBucket(double ratePerSecond, int capacity) {
+        this.tokensPerNano = ratePerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.capacity = capacity;
+        this.tokens = capacity;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Takes a token, waiting until one is available.
+     */
+    public void acquire() throws InterruptedException {
+        long waitTime;
+        synchronized (this) {
+            refill();
+            tokens--; // Tokens can go negative, the next callers will wait for the debt to be refilled
+            waitTime = tokens >= 0 ? 0 : (long) Math.ceil(-tokens / tokensPerNano);
+        }
+
+        if (waitTime > 0) TimeUnit.NANOSECONDS.sleep(waitTime);
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+        lastRefill = now;
+    }
+}
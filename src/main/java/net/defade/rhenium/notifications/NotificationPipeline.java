@@ -0,0 +1,191 @@
+package net.defade.rhenium.notifications;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import net.defade.rhenium.rest.RestServer;
+import net.defade.rhenium.utils.HttpStatusException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Sends the notifications to the proxies and to the game servers.
+ * The notifications of a destination are sent one at a time in the order they were submitted. A failed notification
+ * is retried with an exponential backoff, with the same idempotency key, until it succeeds or its deadline is reached.
+ * The notifications that couldn't be delivered are kept in a dead-letter list exposed on the REST server.
+ * The queues are only kept in memory, the pending notifications are lost if Rhenium is restarted.
+ */
+public class NotificationPipeline implements HttpHandler {
+    private static final Logger LOGGER = LogManager.getLogger(NotificationPipeline.class);
+    private static final long BASE_RETRY_DELAY = 250;
+    private static final long MAX_RETRY_DELAY = 5 * 1000;
+    private static final int MAX_DEAD_LETTERS = 500; // The oldest dead letters are forgotten past this limit
+
+    private final Map<String, Deque<Notification>> queues = new HashMap<>(); // Destination -> notifications, the first one is being sent
+    private final Deque<DeadLetter> deadLetters = new ArrayDeque<>();
+    private final ScheduledExecutorService retryScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "notification-retry");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public NotificationPipeline(RestServer restServer) {
+        restServer.registerEndpoint("/notifications", this);
+    }
+
+    /**
+     * Queues a notification.
+     *
+     * @param destination the notifications with the same destination are sent in order, for example "server:lobby-abcd1234"
+     * @param description describes the notification in the logs and the dead letters, for example "POST /server/stop"
+     * @param timeout the time in milliseconds after which the notification isn't retried anymore
+     * @param sender sends the notification with the given idempotency key, called again for each retry
+     * @return a future completed once the notification has been delivered, or exceptionally if it has been dead-lettered
+     */
+    public CompletableFuture<Void> send(String destination, String description, long timeout, Function<String, CompletableFuture<Void>> sender) {
+        long now = System.currentTimeMillis();
+        Notification notification = new Notification(UUID.randomUUID().toString(), destination, description, now, now + timeout,
+            sender, new CompletableFuture<>());
+
+        boolean first;
+        synchronized (queues) {
+            Deque<Notification> queue = queues.computeIfAbsent(destination, key -> new ArrayDeque<>());
+            queue.add(notification);
+            first = queue.size() == 1;
+        }
+        if (first) attempt(notification, 0);
+
+        return notification.future();
+    }
+
+    public void stop() {
+        retryScheduler.shutdownNow();
+    }
+
+    private void attempt(Notification notification, int attempt) {
+        CompletableFuture<Void> result;
+        try {
+            result = notification.sender().apply(notification.id());
+        } catch (Exception exception) {
+            result = CompletableFuture.failedFuture(exception);
+        }
+
+        result.whenComplete((ignored, throwable) -> {
+            if (throwable == null) {
+                complete(notification, null, attempt + 1);
+                return;
+            }
+
+            Throwable cause = throwable instanceof CompletionException && throwable.getCause() != null ? throwable.getCause() : throwable;
+            long delay = Math.min(MAX_RETRY_DELAY, BASE_RETRY_DELAY << Math.min(attempt, 20));
+            delay = ThreadLocalRandom.current().nextLong(delay / 2, delay + 1); // Jitter so that the retries don't all happen at once
+
+            if (!isRetryable(cause) || System.currentTimeMillis() + delay > notification.deadline()) {
+                complete(notification, cause, attempt + 1);
+                return;
+            }
+
+            LOGGER.debug("Failed to send the notification {} to {}, retrying in {}ms.", notification.description(), notification.destination(), delay);
+            retryScheduler.schedule(() -> attempt(notification, attempt + 1), delay, TimeUnit.MILLISECONDS);
+        });
+    }
+
+    /**
+     * Ends a notification and starts the next notification of its destination.
+     *
+     * @param throwable the last failure if the notification couldn't be delivered
+     */
+    private void complete(Notification notification, Throwable throwable, int attempts) {
+        Notification next;
+        synchronized (queues) {
+            Deque<Notification> queue = queues.get(notification.destination());
+            queue.poll();
+            next = queue.peek();
+            if (next == null) queues.remove(notification.destination());
+
+            if (throwable != null) {
+                deadLetters.add(new DeadLetter(notification, attempts, System.currentTimeMillis(), String.valueOf(throwable.getMessage())));
+                if (deadLetters.size() > MAX_DEAD_LETTERS) deadLetters.poll();
+            }
+        }
+
+        if (throwable == null) {
+            notification.future().complete(null);
+        } else {
+            LOGGER.error("Gave up sending the notification {} to {} after {} attempts.", notification.description(), notification.destination(), attempts, throwable);
+            notification.future().completeExceptionally(throwable);
+        }
+
+        if (next != null) attempt(next, 0);
+    }
+
+    private static boolean isRetryable(Throwable throwable) {
+        // The request reached the destination but was refused, sending it again wouldn't change anything
+        if (throwable instanceof HttpStatusException exception) {
+            int statusCode = exception.getStatusCode();
+            return statusCode == 408 || statusCode == 429 || statusCode >= 500;
+        }
+
+        return true;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestURI().getPath().equals("/notifications/dead-letters") || !exchange.getRequestMethod().equals("GET")) {
+            exchange.sendResponseHeaders(404, 0);
+            exchange.close();
+            return;
+        }
+
+        JsonObject response = new JsonObject();
+        JsonArray deadLettersJson = new JsonArray();
+        synchronized (queues) {
+            response.addProperty("pending", queues.values().stream().mapToInt(Deque::size).sum());
+
+            for (DeadLetter deadLetter : deadLetters) {
+                JsonObject deadLetterJson = new JsonObject();
+                deadLetterJson.addProperty("idempotency-key", deadLetter.notification().id());
+                deadLetterJson.addProperty("destination", deadLetter.notification().destination());
+                deadLetterJson.addProperty("description", deadLetter.notification().description());
+                deadLetterJson.addProperty("submitted", deadLetter.notification().submitTime());
+                deadLetterJson.addProperty("failed", deadLetter.failureTime());
+                deadLetterJson.addProperty("attempts", deadLetter.attempts());
+                deadLetterJson.addProperty("error", deadLetter.error());
+                deadLettersJson.add(deadLetterJson);
+            }
+        }
+        response.add("dead-letters", deadLettersJson);
+
+        byte[] responseBytes = response.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, responseBytes.length);
+        try (OutputStream outputStream = exchange.getResponseBody()) {
+            outputStream.write(responseBytes);
+        }
+    }
+
+    /**
+     * @param id the idempotency key, the same for every attempt
+     * @param deadline the time after which the notification isn't retried anymore
+     */
+    private record Notification(String id, String destination, String description, long submitTime, long deadline,
+                                Function<String, CompletableFuture<Void>> sender, CompletableFuture<Void> future) { }
+
+    private record DeadLetter(Notification notification, int attempts, long failureTime, String error) { }
+}
@@ -0,0 +1,26 @@
+package net.defade.rhenium.profiling;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * An HTTP request sent to a proxy or to a game server.
+ */
+@Name("net.defade.rhenium.HttpRequest")
+@Label("HTTP Request")
+@Category("Rhenium")
+@Description("An HTTP request sent to a proxy or to a game server")
+public class HttpRequestEvent extends Event {
+    @Label("URL")
+    public String url;
+
+    @Label("Method")
+    public String method;
+
+    @Label("Status Code")
+    @Description("-1 if no response has been received")
+    public int statusCode;
+}
@@ -0,0 +1,30 @@
+package net.defade.rhenium.profiling;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The placement of a player by the dispatcher.
+ */
+@Name("net.defade.rhenium.PlayerPlacement")
+@Label("Player Placement")
+@Category("Rhenium")
+@Description("The search of a mini-game instance for a player")
+public class PlayerPlacementEvent extends Event {
+    @Label("Player")
+    public String player;
+
+    @Label("Template")
+    public String template;
+
+    @Label("Result")
+    @Description("moved, queued, refused or dequeued")
+    public String result;
+
+    @Label("Server Id")
+    @Description("The server the player has been sent to, null if the player hasn't been moved")
+    public String serverId;
+}
@@ -0,0 +1,169 @@
+package net.defade.rhenium.profiling;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import net.defade.rhenium.rest.RestServer;
+import net.defade.rhenium.utils.Utils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Starts and stops JDK Flight Recorder recordings without restarting Rhenium.
+ * {@code POST /profiling/start?settings=profile} starts a recording with the given JFR settings ("default" if not set),
+ * {@code POST /profiling/stop} stops it and sends the .jfr file back.
+ * A recording that isn't stopped ends by itself after 30 minutes, it can still be fetched until the next one is started.
+ */
+public class ProfilingEndpoint implements HttpHandler {
+    private static final Logger LOGGER = LogManager.getLogger(ProfilingEndpoint.class);
+    private static final Duration MAX_DURATION = Duration.ofMinutes(30); // A forgotten recording doesn't keep running
+    private static final long MAX_SIZE = 256 * 1024 * 1024; // Nor fills the disk
+
+    private Recording recording;
+    private final ExecutorService dumpExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "profiling-dump");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public ProfilingEndpoint(RestServer restServer) {
+        restServer.registerEndpoint("/profiling", this);
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("POST")) {
+            exchange.sendResponseHeaders(405, -1);
+            return;
+        }
+
+        switch (exchange.getRequestURI().getPath()) {
+            case "/profiling/start" -> start(exchange);
+            case "/profiling/stop" -> stop(exchange);
+            default -> exchange.sendResponseHeaders(404, -1);
+        }
+    }
+
+    private synchronized void start(HttpExchange exchange) throws IOException {
+        if (recording != null && recording.getState() == RecordingState.RUNNING) {
+            exchange.sendResponseHeaders(409, -1); // Only one recording at a time
+            return;
+        }
+        if (recording != null) {
+            LOGGER.info("Discarding the previous JFR recording, it ended after {} minutes without being fetched.", MAX_DURATION.toMinutes());
+            recording.close();
+            recording = null;
+        }
+
+        String settings = Utils.getQueryParameter(exchange, "settings", "default");
+        Configuration configuration;
+        try {
+            configuration = Configuration.getConfiguration(settings);
+        } catch (ParseException | IOException exception) {
+            LOGGER.warn("Unknown JFR settings {}.", settings, exception);
+            exchange.sendResponseHeaders(400, -1);
+            return;
+        }
+
+        recording = new Recording(configuration);
+        recording.setName("rhenium");
+        recording.setToDisk(true);
+        recording.setDuration(MAX_DURATION);
+        recording.setMaxSize(MAX_SIZE);
+        recording.start();
+
+        LOGGER.info("Started a JFR recording with the {} settings.", settings);
+        exchange.sendResponseHeaders(200, -1);
+    }
+
+    private void stop(HttpExchange exchange) throws IOException {
+        Recording stoppedRecording;
+        synchronized (this) {
+            stoppedRecording = recording;
+            recording = null;
+        }
+
+        if (stoppedRecording == null) {
+            exchange.sendResponseHeaders(409, -1);
+            return;
+        }
+
+        // Dumping and sending up to MAX_SIZE bytes takes a while, the REST server must keep handling the other requests
+        dumpExecutor.execute(() -> sendRecording(exchange, stoppedRecording));
+    }
+
+    private void sendRecording(HttpExchange exchange, Recording stoppedRecording) {
+        Path dump = null;
+        try {
+            if (stoppedRecording.getState() == RecordingState.RUNNING) {
+                try {
+                    stoppedRecording.stop();
+                } catch (IllegalStateException ignored) {
+                    // It reached its maximum duration in the meantime
+                }
+            }
+
+            dump = Files.createTempFile("rhenium-", ".jfr");
+            stoppedRecording.dump(dump);
+        } catch (IOException | RuntimeException exception) {
+            // The recording is kept so that the next stop request can try to fetch it again
+            LOGGER.error("Failed to dump the JFR recording, it is kept until the next recording is started.", exception);
+            synchronized (this) {
+                if (recording == null) {
+                    recording = stoppedRecording;
+                } else {
+                    stoppedRecording.close(); // A new recording has been started in the meantime
+                }
+            }
+            deleteQuietly(dump);
+            sendError(exchange);
+            return;
+        }
+
+        stoppedRecording.close();
+        try {
+            LOGGER.info("Stopped the JFR recording, sending {} bytes.", Files.size(dump));
+
+            exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+            exchange.getResponseHeaders().set("Content-Disposition", "attachment; filename=\"rhenium-" + System.currentTimeMillis() + ".jfr\"");
+            exchange.sendResponseHeaders(200, Files.size(dump));
+            try (OutputStream outputStream = exchange.getResponseBody()) {
+                Files.copy(dump, outputStream);
+            }
+        } catch (IOException exception) {
+            LOGGER.error("Failed to send the JFR recording.", exception);
+        } finally {
+            exchange.close();
+            deleteQuietly(dump);
+        }
+    }
+
+    private static void sendError(HttpExchange exchange) {
+        try {
+            exchange.sendResponseHeaders(500, -1);
+        } catch (IOException ignored) {
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void deleteQuietly(Path path) {
+        if (path == null) return;
+
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException exception) {
+            LOGGER.warn("Failed to delete the temporary file {}.", path, exception);
+        }
+    }
+}
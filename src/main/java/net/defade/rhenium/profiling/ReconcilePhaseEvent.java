@@ -0,0 +1,23 @@
+package net.defade.rhenium.profiling;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A phase of the reconciliation done by the server manager.
+ */
+@Name("net.defade.rhenium.ReconcilePhase")
+@Label("Reconcile Phase")
+@Category("Rhenium")
+@Description("A phase of the reconciliation of the servers")
+public class ReconcilePhaseEvent extends Event {
+    @Label("Phase")
+    public String phase;
+
+    @Label("Template")
+    @Description("The template being reconciled, null for the phases that handle every template")
+    public String template;
+}
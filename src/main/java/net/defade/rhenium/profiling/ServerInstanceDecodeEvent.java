@@ -0,0 +1,22 @@
+package net.defade.rhenium.profiling;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The decoding of the annotations of a server pod.
+ */
+@Name("net.defade.rhenium.ServerInstanceDecode")
+@Label("Server Instance Decode")
+@Category("Rhenium")
+@Description("The decoding of the mini-game instances from the annotations of a server pod")
+public class ServerInstanceDecodeEvent extends Event {
+    @Label("Server Id")
+    public String serverId;
+
+    @Label("Mini-Game Instances")
+    public int miniGameInstances;
+}
@@ -0,0 +1,204 @@
+package net.defade.rhenium.proxies;
+
+import io.kubernetes.client.openapi.models.V1Pod;
+import io.kubernetes.client.openapi.models.V1PodList;
+import net.defade.rhenium.Rhenium;
+import net.defade.rhenium.kubernetes.KubernetesCluster;
+import net.defade.rhenium.kubernetes.RequestPriority;
+import net.defade.rhenium.utils.Utils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimerTask;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps track of the Velocity proxies and of the proxy each player is connected to,
+ * so that the requests about a player are sent to the proxy the player is on.
+ */
+public class ProxyRegistry {
+    private static final Logger LOGGER = LogManager.getLogger(ProxyRegistry.class);
+    private static final long REFRESH_INTERVAL = 5 * 1000;
+
+    private final Rhenium rhenium;
+
+    private volatile Map<String, VelocityProxy> proxies = Map.of();
+    private final Map<String, Map<String, VelocityProxy>> clusterProxies = new HashMap<>(); // Cluster name -> proxies of the cluster
+    private final Map<String, String> playerProxies = new ConcurrentHashMap<>(); // Player UUID -> proxy id
+    private final AtomicInteger roundRobin = new AtomicInteger();
+
+    public ProxyRegistry(Rhenium rhenium) {
+        this.rhenium = rhenium;
+    }
+
+    public void start() {
+        rhenium.getTimer().scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                refresh();
+            }
+        }, 0, REFRESH_INTERVAL);
+    }
+
+    /**
+     * Updates the list of proxies from the Velocity pods of every cluster. The health of the proxies that are still running is kept.
+     */
+    public CompletableFuture<Void> refresh() {
+        return CompletableFuture.allOf(rhenium.getKubernetesClusters().stream()
+            .map(this::refresh)
+            .toArray(CompletableFuture[]::new));
+    }
+
+    /**
+     * Updates the proxies of a cluster, the previous proxies of the cluster are kept if they can't be listed.
+     */
+    private CompletableFuture<Void> refresh(KubernetesCluster kubernetesCluster) {
+        String namespace = kubernetesCluster.getNamespace();
+
+        return kubernetesCluster.getGateway().<V1PodList>submit(RequestPriority.RECONCILE, (api, callback) -> api.listNamespacedPod(namespace)
+                .labelSelector("app=velocity")
+                .executeAsync(callback))
+            .thenAccept(podList -> {
+                Map<String, VelocityProxy> currentProxies = proxies;
+                Map<String, VelocityProxy> updatedProxies = new HashMap<>();
+
+                for (V1Pod pod : podList.getItems()) {
+                    if (pod.getStatus() == null || !"Running".equals(pod.getStatus().getPhase()) || pod.getStatus().getPodIP() == null) continue;
+
+                    String proxyId = pod.getMetadata().getName();
+                    String ip = pod.getStatus().getPodIP();
+                    VelocityProxy proxy = currentProxies.get(proxyId);
+                    updatedProxies.put(proxyId, proxy != null && proxy.getIp().equals(ip) ? proxy : new VelocityProxy(proxyId, ip));
+                }
+
+                synchronized (clusterProxies) {
+                    clusterProxies.put(kubernetesCluster.getName(), updatedProxies);
+
+                    Map<String, VelocityProxy> allProxies = new HashMap<>();
+                    clusterProxies.values().forEach(allProxies::putAll);
+                    proxies = Map.copyOf(allProxies);
+                }
+            })
+            .exceptionally(throwable -> {
+                LOGGER.error("Failed to refresh the Velocity proxies of the cluster {}.", kubernetesCluster.getName(), throwable);
+                return null;
+            });
+    }
+
+    /**
+     * Registers the proxy a player is connected to.
+     *
+     * @param playerUUID the player
+     * @param proxyId the name of the Velocity pod, if null the proxy is found from its IP
+     * @param proxyIp the IP the request of the proxy came from
+     */
+    public void registerPlayer(String playerUUID, String proxyId, String proxyIp) {
+        if (proxyId == null) {
+            proxyId = proxies.values().stream()
+                .filter(proxy -> proxy.getIp().equals(proxyIp))
+                .map(VelocityProxy::getProxyId)
+                .findFirst()
+                .orElse(null);
+        }
+
+        if (proxyId == null) {
+            LOGGER.warn("Couldn't find the proxy the player {} is connected to.", playerUUID);
+            return;
+        }
+
+        playerProxies.put(playerUUID, proxyId);
+    }
+
+    /**
+     * Forgets the proxy of a player, unless the player has already been registered on another proxy.
+     */
+    public void unregisterPlayer(String playerUUID, String proxyId) {
+        if (proxyId == null) {
+            playerProxies.remove(playerUUID);
+        } else {
+            playerProxies.remove(playerUUID, proxyId);
+        }
+    }
+
+    /**
+     * Sends a request to the proxy the player is connected to.
+     * If that proxy can't be reached, the request is sent to the other proxies, the healthy ones first.
+     */
+    public CompletableFuture<Void> sendRequest(String playerUUID, String path, String method, String body) {
+        return sendRequest(playerUUID, path, method, body, Map.of());
+    }
+
+    /**
+     * @param headers additional headers of the request
+     * @see #sendRequest(String, String, String, String)
+     */
+    public CompletableFuture<Void> sendRequest(String playerUUID, String path, String method, String body, Map<String, String> headers) {
+        if (proxies.isEmpty()) {
+            return refresh().thenCompose(ignored -> sendRequest(getCandidates(playerUUID), 0, path, method, body, headers));
+        }
+
+        return sendRequest(getCandidates(playerUUID), 0, path, method, body, headers);
+    }
+
+    private CompletableFuture<Void> sendRequest(List<VelocityProxy> candidates, int index, String path, String method, String body, Map<String, String> headers) {
+        if (candidates.isEmpty()) {
+            return CompletableFuture.failedFuture(new IOException("Failed to find a Velocity proxy"));
+        }
+
+        VelocityProxy proxy = candidates.get(index);
+        return Utils.sendHTTPRequest(proxy.getUrl(path), method, body, headers, ForkJoinPool.commonPool())
+            .handle((result, throwable) -> throwable)
+            .thenCompose(throwable -> {
+                if (throwable == null) {
+                    proxy.markSuccess();
+                    return CompletableFuture.completedFuture(null);
+                }
+
+                proxy.markFailure();
+                if (index + 1 >= candidates.size()) {
+                    return CompletableFuture.failedFuture(throwable);
+                }
+
+                LOGGER.warn("Failed to send a request to the proxy {}, trying another proxy.", proxy.getProxyId(), throwable);
+                return sendRequest(candidates, index + 1, path, method, body, headers);
+            });
+    }
+
+    /**
+     * @return the proxies to try, in order: the proxy of the player, the other healthy proxies, then the unhealthy ones
+     */
+    private List<VelocityProxy> getCandidates(String playerUUID) {
+        Map<String, VelocityProxy> currentProxies = proxies;
+        List<VelocityProxy> healthy = new ArrayList<>();
+        List<VelocityProxy> unhealthy = new ArrayList<>();
+
+        String playerProxyId = playerUUID != null ? playerProxies.get(playerUUID) : null;
+        VelocityProxy playerProxy = playerProxyId != null ? currentProxies.get(playerProxyId) : null;
+
+        List<VelocityProxy> others = new ArrayList<>(currentProxies.values());
+        others.remove(playerProxy);
+        if (!others.isEmpty()) {
+            // Spread the failovers between the proxies
+            int offset = Math.floorMod(roundRobin.getAndIncrement(), others.size());
+            for (int i = 0; i < others.size(); i++) {
+                VelocityProxy proxy = others.get((offset + i) % others.size());
+                (proxy.isHealthy() ? healthy : unhealthy).add(proxy);
+            }
+        }
+
+        List<VelocityProxy> candidates = new ArrayList<>(currentProxies.size());
+        if (playerProxy != null && playerProxy.isHealthy()) candidates.add(playerProxy);
+        candidates.addAll(healthy);
+        if (playerProxy != null && !playerProxy.isHealthy()) candidates.add(playerProxy);
+        candidates.addAll(unhealthy);
+
+        return candidates;
+    }
+}
@@ -0,0 +1,52 @@
+package net.defade.rhenium.proxies;
+
+/**
+ * A Velocity pod and its health as seen from Rhenium.
+ */
+public class VelocityProxy {
+    private static final int REST_PORT = 6000;
+    private static final int MAX_CONSECUTIVE_FAILURES = 3;
+    private static final long UNHEALTHY_DURATION = 10 * 1000;
+
+    private final String proxyId;
+    private final String ip;
+
+    private int consecutiveFailures = 0;
+    private long unhealthyUntil = 0;
+
+    public VelocityProxy(String proxyId, String ip) {
+        this.proxyId = proxyId;
+        this.ip = ip;
+    }
+
+    public String getProxyId() {
+        return proxyId;
+    }
+
+    public String getIp() {
+        return ip;
+    }
+
+    public String getUrl(String path) {
+        return "http://" + ip + ":" + REST_PORT + path;
+    }
+
+    /**
+     * A proxy is unhealthy for a while after too many requests in a row failed.
+     */
+    public synchronized boolean isHealthy() {
+        return System.currentTimeMillis() >= unhealthyUntil;
+    }
+
+    public synchronized void markSuccess() {
+        consecutiveFailures = 0;
+        unhealthyUntil = 0;
+    }
+
+    public synchronized void markFailure() {
+        consecutiveFailures++;
+        if (consecutiveFailures >= MAX_CONSECUTIVE_FAILURES) {
+            unhealthyUntil = System.currentTimeMillis() + UNHEALTHY_DURATION;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package net.defade.rhenium.replay;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import net.defade.rhenium.config.RheniumConfig;
+import net.defade.rhenium.config.ServerTemplate;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Replays a recording made by the {@link StateRecorder} through the scaling policy, as fast as the recording can be read,
+ * and reports the pod-minutes, the waiting time of the players and the churn of the servers for each template.
+ * <p>
+ * Usage: {@code ReplayMain <recording> [--config=config.toml] [--provisioning-delay=30]}, the provisioning delay being
+ * the time in seconds for a new server to be ready.
+ */
+public class ReplayMain {
+    private static final Logger LOGGER = LogManager.getLogger(ReplayMain.class);
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            LOGGER.error("Usage: ReplayMain <recording> [--config=config.toml] [--provisioning-delay=30]");
+            return;
+        }
+
+        Path recordingFile = Path.of(args[0]);
+        Path configFile = Path.of("config.toml");
+        long provisioningDelay = 30 * 1000;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].startsWith("--config=")) {
+                configFile = Path.of(args[i].substring("--config=".length()));
+            } else if (args[i].startsWith("--provisioning-delay=")) {
+                provisioningDelay = Long.parseLong(args[i].substring("--provisioning-delay=".length())) * 1000;
+            }
+        }
+
+        RheniumConfig rheniumConfig = RheniumConfig.load(configFile);
+        Map<String, TemplateSimulation> simulations = new LinkedHashMap<>();
+        Set<String> unknownTemplates = new HashSet<>();
+        int records = 0;
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(Files.newInputStream(recordingFile)), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                JsonObject record;
+                try {
+                    record = JsonParser.parseString(line).getAsJsonObject();
+                } catch (RuntimeException exception) {
+                    continue; // The last line may be incomplete if the recording is still being written
+                }
+
+                String templateIdentifier = record.get("template").getAsString();
+                ServerTemplate serverTemplate = rheniumConfig.getTemplateByIdentifier(templateIdentifier);
+                if (serverTemplate == null) {
+                    if (unknownTemplates.add(templateIdentifier)) {
+                        LOGGER.warn("The template {} doesn't exist in the configuration, its records are ignored.", templateIdentifier);
+                    }
+                    continue;
+                }
+
+                long provisioningDelayMillis = provisioningDelay;
+                TemplateSimulation simulation = simulations.computeIfAbsent(templateIdentifier, identifier -> new TemplateSimulation(serverTemplate, provisioningDelayMillis));
+                replay(simulation, record);
+                records++;
+            }
+        } catch (EOFException exception) {
+            LOGGER.warn("The recording ends abruptly, it has only been replayed up to its last complete record.");
+        }
+
+        LOGGER.info("Replayed {} records.", records);
+        for (TemplateSimulation simulation : simulations.values()) {
+            LOGGER.info(simulation.report());
+        }
+    }
+
+    private static void replay(TemplateSimulation simulation, JsonObject record) {
+        long time = record.get("time").getAsLong();
+
+        switch (record.get("type").getAsString()) {
+            case "tick" -> {
+                int demand = record.get("queued").getAsInt();
+                List<String> recordedServers = new ArrayList<>();
+                for (JsonElement element : record.getAsJsonArray("servers")) {
+                    JsonObject server = element.getAsJsonObject();
+                    demand += server.get("players").getAsInt();
+                    if (!"TERMINATING".equals(server.get("state").getAsString())) {
+                        recordedServers.add(server.get("id").getAsString());
+                    }
+                }
+
+                simulation.tick(time, demand, recordedServers);
+            }
+            case "join" -> simulation.join(time);
+            default -> { }
+        }
+    }
+}
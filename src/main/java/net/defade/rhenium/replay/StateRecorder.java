@@ -0,0 +1,169 @@
+package net.defade.rhenium.replay;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import net.defade.rhenium.config.RheniumConfig;
+import net.defade.rhenium.config.ServerTemplate;
+import net.defade.rhenium.servers.instances.ServerInstance;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Records the state observed at each reconciliation and the player joins, so that they can be replayed offline
+ * with {@link ReplayMain} to compare scaling policies.
+ * The recording is a gzip compressed file with one JSON object per line, written by a background thread.
+ */
+public class StateRecorder {
+    private static final Logger LOGGER = LogManager.getLogger(StateRecorder.class);
+    private static final int QUEUE_SIZE = 10000;
+    private static final long FLUSH_INTERVAL = 5 * 1000;
+    private static final long POLL_INTERVAL = 500; // Delay before the writer notices that the recorder is stopping
+    private static final long STOP_TIMEOUT = 10 * 1000;
+
+    private final boolean enabled;
+    private final Path recordingFile;
+    private final BlockingQueue<String> records = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final AtomicLong droppedRecords = new AtomicLong();
+    private Thread writerThread;
+    private volatile boolean stopping = false;
+
+    public StateRecorder(RheniumConfig rheniumConfig) {
+        this.enabled = rheniumConfig.isRecordingEnabled();
+        this.recordingFile = rheniumConfig.getRecordingDirectory().resolve("recording-" + System.currentTimeMillis() + ".jsonl.gz");
+    }
+
+    public void start() {
+        if (!enabled) return;
+
+        writerThread = new Thread(this::writeRecords, "state-recorder");
+        writerThread.setDaemon(true);
+        writerThread.start();
+        LOGGER.info("Recording the cluster state to {}.", recordingFile);
+    }
+
+    /**
+     * Writes the remaining records and closes the recording, so that it isn't truncated when Rhenium stops.
+     */
+    public void stop() {
+        if (writerThread == null) return;
+
+        stopping = true;
+        try {
+            writerThread.join(STOP_TIMEOUT);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (writerThread.isAlive()) {
+            LOGGER.warn("The recording of the cluster state couldn't be closed in time, it may be truncated.");
+            writerThread.interrupt();
+        }
+    }
+
+    /**
+     * Records the state of a template before it is reconciled.
+     */
+    public void recordTick(ServerTemplate serverTemplate, List<ServerInstance> serverInstances, int queuedPlayers, int pendingServers) {
+        if (!enabled) return;
+
+        JsonArray servers = new JsonArray();
+        for (ServerInstance serverInstance : serverInstances) {
+            JsonObject server = new JsonObject();
+            server.addProperty("id", serverInstance.getServerId());
+            server.addProperty("state", serverInstance.getState().name());
+            server.addProperty("players", serverInstance.getOnlinePlayers());
+            server.addProperty("mini-games", serverInstance.getMiniGameInstances().size());
+            servers.add(server);
+        }
+
+        JsonObject record = createRecord("tick", serverTemplate);
+        record.addProperty("queued", queuedPlayers);
+        record.addProperty("pending", pendingServers);
+        record.add("servers", servers);
+        add(record);
+    }
+
+    /**
+     * Records a player asking to join a template.
+     *
+     * @param result what happened to the player: "moved", "queued" or "refused"
+     */
+    public void recordJoin(ServerTemplate serverTemplate, String playerUUID, String result) {
+        if (!enabled) return;
+
+        JsonObject record = createRecord("join", serverTemplate);
+        record.addProperty("player", playerUUID);
+        record.addProperty("result", result);
+        add(record);
+    }
+
+    private static JsonObject createRecord(String type, ServerTemplate serverTemplate) {
+        JsonObject record = new JsonObject();
+        record.addProperty("time", System.currentTimeMillis());
+        record.addProperty("type", type);
+        record.addProperty("template", serverTemplate.templateIdentifier());
+        return record;
+    }
+
+    private void add(JsonObject record) {
+        // The recording must never slow down the reconciliation, records are dropped if the writer can't keep up
+        if (!records.offer(record.toString())) {
+            droppedRecords.incrementAndGet();
+        }
+    }
+
+    private void writeRecords() {
+        try {
+            Files.createDirectories(recordingFile.getParent());
+        } catch (IOException exception) {
+            LOGGER.error("Failed to create the recording directory, the cluster state won't be recorded.", exception);
+            return;
+        }
+
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(Files.newOutputStream(recordingFile), true), StandardCharsets.UTF_8))) {
+            long lastFlush = System.currentTimeMillis();
+
+            while (!stopping) {
+                String record = records.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                if (record != null) {
+                    writer.write(record);
+                    writer.write('\n');
+                }
+
+                // Flush regularly so that the recording can be read while it's being written
+                if (System.currentTimeMillis() - lastFlush >= FLUSH_INTERVAL) {
+                    writer.flush();
+                    lastFlush = System.currentTimeMillis();
+
+                    long dropped = droppedRecords.getAndSet(0);
+                    if (dropped > 0) LOGGER.warn("Dropped {} records of the cluster state, the recorder can't keep up.", dropped);
+                }
+            }
+
+            // The records added before the stop are still written, closing the writer then writes the gzip trailer
+            String record;
+            while ((record = records.poll()) != null) {
+                writer.write(record);
+                writer.write('\n');
+            }
+            LOGGER.info("Stopped recording the cluster state to {}.", recordingFile);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        } catch (IOException exception) {
+            LOGGER.error("Failed to write the recording of the cluster state.", exception);
+        }
+    }
+}
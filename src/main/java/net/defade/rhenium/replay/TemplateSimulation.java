@@ -0,0 +1,154 @@
+package net.defade.rhenium.replay;
+
+import net.defade.rhenium.config.ServerTemplate;
+import net.defade.rhenium.servers.instances.ServerState;
+import net.defade.rhenium.servers.scaling.ScalingPlan;
+import net.defade.rhenium.servers.scaling.ScalingPolicy;
+import net.defade.rhenium.servers.scaling.ScalingState;
+import net.defade.rhenium.servers.scaling.ServerSnapshot;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Simulates the servers of a template driven by the scaling policy, from the demand of a recording.
+ * The players are spread over the ready servers at each tick, the mini-game instances aren't simulated.
+ */
+class TemplateSimulation {
+    private final ServerTemplate serverTemplate;
+    private final long provisioningDelay;
+
+    private final Map<String, SimulatedServer> servers = new LinkedHashMap<>();
+    private final ScalingState scalingState = new ScalingState();
+    private int createdServersCount = 0;
+    private long lastTickTime = -1;
+    private long lastActivityTime = -1;
+    private int waitingPlayers = 0;
+    private int recordedServers = 0;
+    private final Set<String> recordedServerIds = new HashSet<>();
+
+    // Metrics
+    private long podMillis = 0;
+    private long recordedPodMillis = 0;
+    private long waitingPlayerMillis = 0;
+    private int maxWaitingPlayers = 0;
+    private int joins = 0;
+    private int joinsWithoutCapacity = 0;
+
+    /**
+     * @param provisioningDelay the time it takes for a new server to be ready, in milliseconds
+     */
+    TemplateSimulation(ServerTemplate serverTemplate, long provisioningDelay) {
+        this.serverTemplate = serverTemplate;
+        this.provisioningDelay = provisioningDelay;
+    }
+
+    /**
+     * Applies the scaling policy to the simulated servers with the demand recorded at a tick.
+     *
+     * @param demand the players connected to the servers of the template or waiting for one when the tick was recorded
+     * @param recordedServers the amount of servers that existed when the tick was recorded
+     */
+    void tick(long time, int demand, List<String> recordedServers) {
+        advance(time);
+        if (demand > 0 || lastActivityTime < 0) lastActivityTime = time;
+        this.recordedServers = recordedServers.size();
+        recordedServerIds.addAll(recordedServers);
+
+        // Fill the servers accepting players first, the draining servers only keep the remaining players
+        int remainingPlayers = demand;
+        for (boolean draining : new boolean[] { false, true }) {
+            for (SimulatedServer server : servers.values()) {
+                if (server.draining != draining) continue;
+
+                server.players = server.isReady(time) ? Math.min(remainingPlayers, serverTemplate.maxPlayers()) : 0;
+                remainingPlayers -= server.players;
+            }
+        }
+        waitingPlayers = remainingPlayers;
+        maxWaitingPlayers = Math.max(maxWaitingPlayers, waitingPlayers);
+
+        List<ServerSnapshot> snapshots = new ArrayList<>();
+        for (SimulatedServer server : servers.values()) {
+            snapshots.add(new ServerSnapshot(server.serverId, server.getState(time), server.players, server.creationTime));
+        }
+        applyPlan(time, ScalingPolicy.plan(serverTemplate, snapshots, 0, time - lastActivityTime, scalingState, time));
+    }
+
+    /**
+     * Checks if a recorded join would have been moved right away to a simulated server.
+     */
+    void join(long time) {
+        joins++;
+
+        boolean hasCapacity = servers.values().stream()
+            .anyMatch(server -> server.getState(time) == ServerState.READY && server.players < serverTemplate.maxPlayers());
+        if (!hasCapacity) joinsWithoutCapacity++;
+    }
+
+    private void advance(long time) {
+        if (lastTickTime >= 0 && time > lastTickTime) {
+            long elapsedTime = time - lastTickTime;
+            podMillis += elapsedTime * servers.size();
+            recordedPodMillis += elapsedTime * recordedServers;
+            waitingPlayerMillis += elapsedTime * waitingPlayers;
+        }
+        lastTickTime = time;
+    }
+
+    private void applyPlan(long time, ScalingPlan scalingPlan) {
+        for (String serverId : scalingPlan.serversToReuse()) {
+            servers.get(serverId).draining = false;
+        }
+        for (int i = 0; i < scalingPlan.serversToCreate(); i++) {
+            String serverId = "simulated-" + createdServersCount++;
+            servers.put(serverId, new SimulatedServer(serverId, time, time + provisioningDelay));
+        }
+        for (String serverId : scalingPlan.serversToDrain()) {
+            servers.get(serverId).draining = true;
+        }
+        for (String serverId : scalingPlan.serversToStop()) {
+            servers.remove(serverId);
+        }
+    }
+
+    String report() {
+        ScalingState.ChurnMetrics churnMetrics = scalingState.getChurnMetrics();
+        return String.format(
+            "%s: %.1f pod-minutes (%.1f recorded, %d servers seen), %.1f player-seconds of waiting (max %d waiting players), "
+                + "%d/%d joins without capacity, churn: %d created, %d stopped, %d drained, %d reused, %d creations avoided, %d flapping",
+            serverTemplate.templateName(),
+            podMillis / 60000.0, recordedPodMillis / 60000.0, recordedServerIds.size(),
+            waitingPlayerMillis / 1000.0, maxWaitingPlayers,
+            joinsWithoutCapacity, joins,
+            churnMetrics.created(), churnMetrics.stopped(), churnMetrics.drained(), churnMetrics.reused(),
+            churnMetrics.avoidedCreations(), churnMetrics.flappingServers()
+        );
+    }
+
+    private static class SimulatedServer {
+        private final String serverId;
+        private final long creationTime;
+        private final long readyTime;
+        private boolean draining = false;
+        private int players = 0;
+
+        private SimulatedServer(String serverId, long creationTime, long readyTime) {
+            this.serverId = serverId;
+            this.creationTime = creationTime;
+            this.readyTime = readyTime;
+        }
+
+        private boolean isReady(long time) {
+            return time >= readyTime;
+        }
+
+        private ServerState getState(long time) {
+            if (draining) return ServerState.DRAINING;
+            return isReady(time) ? ServerState.READY : ServerState.PROVISIONING;
+        }
+    }
+}
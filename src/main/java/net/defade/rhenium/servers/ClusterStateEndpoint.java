@@ -0,0 +1,337 @@
+package net.defade.rhenium.servers;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import net.defade.rhenium.config.ServerTemplate;
+import net.defade.rhenium.kubernetes.KubernetesCluster;
+import net.defade.rhenium.rest.RestServer;
+import net.defade.rhenium.servers.instances.MiniGameInstance;
+import net.defade.rhenium.servers.instances.ServerInstance;
+import net.defade.rhenium.servers.instances.ServerState;
+import net.defade.rhenium.servers.scaling.ScalingState;
+import net.defade.rhenium.utils.Utils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Serves the state of the templates and of their servers as seen by Rhenium, so that the dashboards and the proxies
+ * don't have to query Kubernetes themselves.
+ * <p>
+ * {@code GET /cluster/state} returns the last snapshot, with its version as ETag. If {@code If-None-Match} is the current
+ * ETag, a 304 is returned right away, or once the state changed or {@code ?wait=} seconds passed when it is set.
+ * The snapshots are immutable and only rebuilt when the state of a template changes, the waiting requests don't hold a thread
+ * until they are answered.
+ */
+public class ClusterStateEndpoint implements HttpHandler {
+    private static final Logger LOGGER = LogManager.getLogger(ClusterStateEndpoint.class);
+    private static final long MAX_WAIT_TIME = 60; // In seconds, the clients poll again before their own timeout
+    private static final int MAX_WAITING_REQUESTS = 1000;
+    private static final int SENDER_THREADS = 8; // A slow client only holds one of them while the others are answered
+
+    private final String instanceId = Utils.generateUniqueNetworkId(8); // The versions start from 0 again when Rhenium restarts
+
+    // Guarded by this
+    private final Map<String, JsonObject> templateStates = new TreeMap<>(); // Template identifier -> state of the template
+    private JsonArray clusterStates = new JsonArray();
+    private final List<WaitingRequest> waitingRequests = new ArrayList<>();
+
+    private volatile Snapshot snapshot;
+    private final ScheduledExecutorService timeoutScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "cluster-state-timeout");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Sends the answers to the waiting requests, the writes block until the client read the response
+    private final ExecutorService senders = new ThreadPoolExecutor(SENDER_THREADS, SENDER_THREADS, 0, TimeUnit.MILLISECONDS,
+        new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "cluster-state-sender");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+    public ClusterStateEndpoint(RestServer restServer) {
+        this.snapshot = buildSnapshot(0);
+        restServer.registerEndpoint("/cluster", this);
+    }
+
+    public void stop() {
+        timeoutScheduler.shutdownNow();
+        senders.shutdownNow();
+    }
+
+    /**
+     * Updates the state of a template after its reconciliation. A new snapshot is only published if the state changed.
+     *
+     * @param queuedPlayers the players waiting for a server of the template
+     * @param pendingServers the servers created whose pod hasn't been seen yet
+     * @param stoppingServers the servers of the template being notified and deleted
+     */
+    public void updateTemplate(ServerTemplate serverTemplate, List<ServerInstance> serverInstances, int queuedPlayers, int pendingServers,
+                               Collection<String> stoppingServers, boolean wakingUp, ScalingState.ChurnMetrics churnMetrics,
+                               ColdStartTracker.ColdStartStats coldStartStats) {
+        JsonObject templateState = new JsonObject();
+        templateState.addProperty("name", serverTemplate.templateName());
+        templateState.addProperty("identifier", serverTemplate.templateIdentifier());
+        templateState.addProperty("max-players", serverTemplate.maxPlayers());
+        templateState.addProperty("queued-players", queuedPlayers);
+        templateState.addProperty("waking-up", wakingUp);
+
+        JsonArray servers = new JsonArray();
+        JsonArray drainingServers = new JsonArray();
+        List<ServerInstance> sortedServerInstances = new ArrayList<>(serverInstances);
+        sortedServerInstances.sort(Comparator.comparing(ServerInstance::getServerId)); // The same state gives the same snapshot
+        for (ServerInstance serverInstance : sortedServerInstances) {
+            servers.add(toJson(serverInstance));
+            if (serverInstance.getState() == ServerState.DRAINING) drainingServers.add(serverInstance.getServerId());
+        }
+        templateState.add("servers", servers);
+
+        JsonObject pendingScaleActions = new JsonObject();
+        pendingScaleActions.addProperty("creating", pendingServers);
+        pendingScaleActions.add("draining", drainingServers); // Stopped once their players left
+        JsonArray stoppingServersJson = new JsonArray();
+        stoppingServers.stream().sorted().forEach(stoppingServersJson::add);
+        pendingScaleActions.add("stopping", stoppingServersJson);
+        templateState.add("pending-scale-actions", pendingScaleActions);
+
+        JsonObject churn = new JsonObject();
+        churn.addProperty("created", churnMetrics.created());
+        churn.addProperty("drained", churnMetrics.drained());
+        churn.addProperty("reused", churnMetrics.reused());
+        churn.addProperty("stopped", churnMetrics.stopped());
+        churn.addProperty("avoided-creations", churnMetrics.avoidedCreations());
+        churn.addProperty("flapping-servers", churnMetrics.flappingServers());
+        templateState.add("churn", churn);
+
+        JsonObject coldStarts = new JsonObject();
+        coldStarts.addProperty("count", coldStartStats.count());
+        coldStarts.addProperty("average-latency", coldStartStats.count() > 0 ? coldStartStats.totalLatency() / coldStartStats.count() : 0);
+        coldStarts.addProperty("max-latency", coldStartStats.maxLatency());
+        coldStarts.addProperty("last-latency", coldStartStats.lastLatency());
+        coldStarts.addProperty("failures", coldStartStats.failures());
+        templateState.add("cold-starts", coldStarts);
+
+        synchronized (this) {
+            if (templateState.equals(templateStates.get(serverTemplate.templateIdentifier()))) return;
+
+            templateStates.put(serverTemplate.templateIdentifier(), templateState);
+            publish();
+        }
+    }
+
+    /**
+     * Forgets the templates that have been removed from the configuration.
+     */
+    public synchronized void retainTemplates(Set<String> templateIdentifiers) {
+        if (templateStates.keySet().retainAll(templateIdentifiers)) publish();
+    }
+
+    /**
+     * Updates the health of the clusters, done during the full reconciliations.
+     */
+    public void updateClusters(List<KubernetesCluster> kubernetesClusters) {
+        JsonArray clusters = new JsonArray();
+        for (KubernetesCluster kubernetesCluster : kubernetesClusters) {
+            JsonObject cluster = new JsonObject();
+            cluster.addProperty("name", kubernetesCluster.getName());
+            cluster.addProperty("namespace", kubernetesCluster.getNamespace());
+            cluster.addProperty("healthy", kubernetesCluster.isHealthy());
+            clusters.add(cluster);
+        }
+
+        synchronized (this) {
+            if (clusters.equals(clusterStates)) return;
+
+            clusterStates = clusters;
+            publish();
+        }
+    }
+
+    /**
+     * Replaces the snapshot and answers the requests waiting for a change. Must be called while holding the lock.
+     */
+    private void publish() {
+        snapshot = buildSnapshot(snapshot.version() + 1);
+
+        List<WaitingRequest> changedRequests = new ArrayList<>(waitingRequests);
+        waitingRequests.clear();
+        changedRequests.forEach(this::answerLater);
+    }
+
+    private Snapshot buildSnapshot(long version) {
+        JsonObject state = new JsonObject();
+        state.addProperty("version", version);
+        state.addProperty("updated", System.currentTimeMillis());
+        state.add("clusters", clusterStates.deepCopy());
+
+        JsonArray templates = new JsonArray();
+        templateStates.values().forEach(templates::add);
+        state.add("templates", templates);
+
+        return new Snapshot(version, "\"" + instanceId + "-" + version + "\"", state.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static JsonObject toJson(ServerInstance serverInstance) {
+        JsonObject server = new JsonObject();
+        server.addProperty("id", serverInstance.getServerId());
+        server.addProperty("cluster", serverInstance.getKubernetesCluster().getName());
+        server.addProperty("state", serverInstance.getState().name());
+        server.addProperty("ip", serverInstance.getServerIp());
+        server.addProperty("online-players", serverInstance.getOnlinePlayers());
+        server.addProperty("created", serverInstance.getCreationTime());
+
+        JsonArray miniGameInstances = new JsonArray();
+        serverInstance.getMiniGameInstances().values().stream()
+            .sorted(Comparator.comparing(MiniGameInstance::getMiniGameInstanceId))
+            .forEach(miniGameInstance -> {
+                JsonObject miniGameInstanceJson = new JsonObject();
+                miniGameInstanceJson.addProperty("id", miniGameInstance.getMiniGameInstanceId().toString());
+                miniGameInstanceJson.addProperty("online-players", miniGameInstance.getOnlinePlayers());
+                miniGameInstanceJson.addProperty("max-players", miniGameInstance.getMaxPlayers());
+                miniGameInstanceJson.addProperty("accepting-players", miniGameInstance.isAcceptingPlayers());
+                miniGameInstanceJson.addProperty("require-players-to-rejoin", miniGameInstance.requirePlayingPlayersToRejoin());
+                miniGameInstances.add(miniGameInstanceJson);
+            });
+        server.add("mini-game-instances", miniGameInstances);
+
+        return server;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestURI().getPath().equals("/cluster/state")) {
+            exchange.sendResponseHeaders(404, -1);
+            exchange.close();
+            return;
+        }
+        if (!exchange.getRequestMethod().equals("GET")) {
+            exchange.sendResponseHeaders(405, -1);
+            exchange.close();
+            return;
+        }
+
+        String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+        long waitTime;
+        try {
+            waitTime = Math.min(MAX_WAIT_TIME, Long.parseLong(Utils.getQueryParameter(exchange, "wait", "0")));
+        } catch (NumberFormatException exception) {
+            exchange.sendResponseHeaders(400, -1);
+            exchange.close();
+            return;
+        }
+
+        WaitingRequest waitingRequest = new WaitingRequest(exchange, ifNoneMatch, new AtomicBoolean());
+        if (waitTime > 0 && matches(ifNoneMatch, snapshot.etag())) {
+            boolean tooManyRequests;
+            synchronized (this) {
+                // The snapshot can't change while the request is added, so it is either answered now or by the next publish
+                if (!matches(ifNoneMatch, snapshot.etag())) {
+                    tooManyRequests = false;
+                } else if (waitingRequests.size() >= MAX_WAITING_REQUESTS) {
+                    tooManyRequests = true;
+                } else {
+                    waitingRequests.add(waitingRequest);
+                    timeoutScheduler.schedule(() -> timeout(waitingRequest), waitTime, TimeUnit.SECONDS);
+                    return;
+                }
+            }
+
+            if (tooManyRequests) {
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                exchange.sendResponseHeaders(503, -1);
+                exchange.close();
+                return;
+            }
+        }
+
+        answer(waitingRequest);
+    }
+
+    private void timeout(WaitingRequest waitingRequest) {
+        boolean waiting;
+        synchronized (this) {
+            waiting = waitingRequests.remove(waitingRequest);
+        }
+        if (waiting) answerLater(waitingRequest); // Otherwise a publish already handed it to a sender
+    }
+
+    /**
+     * Answers a waiting request on one of the sender threads, so that neither the reconciliation nor the timeouts wait for the client.
+     */
+    private void answerLater(WaitingRequest waitingRequest) {
+        try {
+            senders.execute(() -> answer(waitingRequest));
+        } catch (RejectedExecutionException exception) {
+            // Only happens when stopping, the queue isn't bounded since there are at most MAX_WAITING_REQUESTS waiting requests
+            if (waitingRequest.answered().compareAndSet(false, true)) waitingRequest.exchange().close();
+        }
+    }
+
+    /**
+     * Sends the current snapshot, or a 304 if the client already has it. A request is only answered once.
+     */
+    private void answer(WaitingRequest waitingRequest) {
+        if (!waitingRequest.answered().compareAndSet(false, true)) return;
+
+        Snapshot currentSnapshot = snapshot;
+        HttpExchange exchange = waitingRequest.exchange();
+        try {
+            exchange.getResponseHeaders().set("ETag", currentSnapshot.etag());
+            exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+            if (matches(waitingRequest.ifNoneMatch(), currentSnapshot.etag())) {
+                exchange.sendResponseHeaders(304, -1);
+                exchange.close();
+                return;
+            }
+
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, currentSnapshot.body().length);
+            try (OutputStream outputStream = exchange.getResponseBody()) {
+                outputStream.write(currentSnapshot.body());
+            }
+        } catch (IOException exception) {
+            LOGGER.debug("Failed to send the cluster state, the client probably left.", exception);
+            exchange.close();
+        }
+    }
+
+    private static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) return false;
+
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) tag = tag.substring(2);
+            if (tag.equals("*") || tag.equals(etag)) return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * @param etag the version of the snapshot, with an id of this Rhenium instance since the versions aren't persisted
+     * @param body the JSON of the snapshot, sent as is to every client
+     */
+    private record Snapshot(long version, String etag, byte[] body) { }
+
+    private record WaitingRequest(HttpExchange exchange, String ifNoneMatch, AtomicBoolean answered) { }
+}
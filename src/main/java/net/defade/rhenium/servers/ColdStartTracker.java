@@ -0,0 +1,78 @@
+package net.defade.rhenium.servers;
+
+import net.defade.rhenium.config.ServerTemplate;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Measures the time it takes for a template that has been scaled to zero to have a ready server again.
+ */
+public class ColdStartTracker {
+    private static final Logger LOGGER = LogManager.getLogger(ColdStartTracker.class);
+    private static final long WAKE_UP_TIMEOUT = 5 * 60 * 1000; // A template without a ready server after this long failed to wake up
+
+    private final Map<String, Long> wakeUps = new ConcurrentHashMap<>(); // Template identifier -> time of the wake-up
+    private final Map<String, ColdStartStats> stats = new ConcurrentHashMap<>(); // Template identifier -> cold starts of the template
+
+    /**
+     * Called when a server is created for a template that had no server.
+     */
+    public void wakeUp(ServerTemplate serverTemplate, long time) {
+        if (wakeUps.putIfAbsent(serverTemplate.templateIdentifier(), time) == null) {
+            LOGGER.info("Waking up the template {}.", serverTemplate.templateName());
+        }
+    }
+
+    /**
+     * Called when a template has a ready server, ends the wake-up of the template if there is one.
+     */
+    public void ready(ServerTemplate serverTemplate, long time) {
+        Long wakeUpTime = wakeUps.remove(serverTemplate.templateIdentifier());
+        if (wakeUpTime == null) return;
+
+        long latency = time - wakeUpTime;
+        ColdStartStats templateStats = stats.merge(serverTemplate.templateIdentifier(), new ColdStartStats(1, latency, latency, latency, 0),
+            (previous, current) -> new ColdStartStats(previous.count() + 1, previous.totalLatency() + latency, Math.max(previous.maxLatency(), latency),
+                latency, previous.failures()));
+
+        LOGGER.info("The template {} woke up in {}ms (average of {}ms over {} cold starts).",
+            serverTemplate.templateName(), latency, templateStats.totalLatency() / templateStats.count(), templateStats.count());
+    }
+
+    /**
+     * Called when a template has no ready server, ends its wake-up as a failure if it has no server left
+     * or if it has been waking up for too long, for example because its pods can't start.
+     *
+     * @param hasServers if the template still has servers, ready or not
+     */
+    public void notReady(ServerTemplate serverTemplate, boolean hasServers, long time) {
+        Long wakeUpTime = wakeUps.get(serverTemplate.templateIdentifier());
+        if (wakeUpTime == null || (hasServers && time - wakeUpTime < WAKE_UP_TIMEOUT)) return;
+        if (!wakeUps.remove(serverTemplate.templateIdentifier(), wakeUpTime)) return;
+
+        ColdStartStats templateStats = stats.merge(serverTemplate.templateIdentifier(), new ColdStartStats(0, 0, 0, 0, 1),
+            (previous, current) -> new ColdStartStats(previous.count(), previous.totalLatency(), previous.maxLatency(), previous.lastLatency(),
+                previous.failures() + 1));
+
+        LOGGER.warn("The template {} failed to wake up, it had no ready server after {}ms ({} failed cold starts).",
+            serverTemplate.templateName(), time - wakeUpTime, templateStats.failures());
+    }
+
+    public boolean isWakingUp(ServerTemplate serverTemplate) {
+        return wakeUps.containsKey(serverTemplate.templateIdentifier());
+    }
+
+    public ColdStartStats getStats(ServerTemplate serverTemplate) {
+        return stats.getOrDefault(serverTemplate.templateIdentifier(), new ColdStartStats(0, 0, 0, 0, 0));
+    }
+
+    /**
+     * @param totalLatency in milliseconds, the sum of the latencies of every cold start
+     * @param maxLatency in milliseconds
+     * @param lastLatency in milliseconds
+     * @param failures the wake-ups that ended without a ready server, not counted in the other values
+     */
+    public record ColdStartStats(int count, long totalLatency, long maxLatency, long lastLatency, int failures) { }
+}
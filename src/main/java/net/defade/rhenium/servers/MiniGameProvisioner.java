@@ -0,0 +1,96 @@
+package net.defade.rhenium.servers;
+
+import net.defade.rhenium.config.ServerTemplate;
+import net.defade.rhenium.servers.instances.ServerInstance;
+import net.defade.rhenium.servers.instances.ServerState;
+import net.defade.rhenium.utils.Utils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Asks the running servers to create new mini-game instances when every instance of a template is full.
+ * A new mini-game instance is available in about a second, a new pod is only requested if no server could create one.
+ */
+public class MiniGameProvisioner {
+    private static final Logger LOGGER = LogManager.getLogger(MiniGameProvisioner.class);
+    private static final String CREATE_MINI_GAME_INSTANCE_PATH = "/server/create-mini-game-instance";
+    private static final long CREATION_TIMEOUT = 10 * 1000; // Time for the new instance to appear in the annotations of the pod
+    private static final long FAILED_SERVER_RETRY_DELAY = 60 * 1000; // A server that failed to create an instance isn't asked again before this delay
+
+    private final ServerManager serverManager;
+
+    private final Map<String, PendingCreation> pendingCreations = new ConcurrentHashMap<>(); // Template identifier -> last request
+    private final Map<String, Long> failedServers = new ConcurrentHashMap<>(); // Server id -> time of the failure
+
+    public MiniGameProvisioner(ServerManager serverManager) {
+        this.serverManager = serverManager;
+    }
+
+    /**
+     * Asks the ready server of the template with the most room to create a new mini-game instance.
+     * If there is no such server or if the creation fails, a new server is requested instead.
+     *
+     * @param sentPlayers the players already sent to a server that aren't counted by the server yet, by server id
+     */
+    public void provision(ServerTemplate serverTemplate, List<ServerInstance> serverInstances, Map<String, Integer> sentPlayers) {
+        long now = System.currentTimeMillis();
+        failedServers.values().removeIf(failureTime -> now - failureTime > FAILED_SERVER_RETRY_DELAY);
+
+        PendingCreation pendingCreation = pendingCreations.get(serverTemplate.templateIdentifier());
+        if (pendingCreation != null) {
+            if (now - pendingCreation.requestTime() < CREATION_TIMEOUT) return; // The instance has been requested and should appear soon
+
+            // The server accepted the request but didn't create the instance, it isn't asked again for a while
+            LOGGER.warn("The mini-game instance requested for {} on the server {} didn't appear, requesting a new server.",
+                serverTemplate.templateName(), pendingCreation.serverId());
+            failedServers.put(pendingCreation.serverId(), now);
+            pendingCreations.remove(serverTemplate.templateIdentifier());
+            serverManager.requestServer(serverTemplate);
+            return;
+        }
+
+        ServerInstance targetServer = null;
+        int lowestPlayers = serverTemplate.maxPlayers();
+        for (ServerInstance serverInstance : serverInstances) {
+            if (serverInstance.getState() != ServerState.READY || serverInstance.getServerIp() == null) continue;
+            if (failedServers.containsKey(serverInstance.getServerId())) continue;
+
+            int serverPlayers = serverInstance.getOnlinePlayers() + sentPlayers.getOrDefault(serverInstance.getServerId(), 0);
+            if (serverPlayers < lowestPlayers) {
+                targetServer = serverInstance;
+                lowestPlayers = serverPlayers;
+            }
+        }
+
+        // No server has room left, the scaling policy already creates new servers in that case
+        if (targetServer == null) return;
+
+        String serverId = targetServer.getServerId();
+        PendingCreation creation = new PendingCreation(serverId, now);
+        pendingCreations.put(serverTemplate.templateIdentifier(), creation);
+        Utils.sendHTTPRequest("http://" + targetServer.getServerIp() + CREATE_MINI_GAME_INSTANCE_PATH, "POST", "{}")
+            .whenComplete((result, throwable) -> {
+                if (throwable == null) {
+                    LOGGER.info("Requested a new mini-game instance of {} on the server {}.", serverTemplate.templateName(), serverId);
+                    return;
+                }
+
+                LOGGER.warn("The server {} failed to create a new mini-game instance, requesting a new server.", serverId, throwable);
+                failedServers.put(serverId, System.currentTimeMillis());
+                if (!pendingCreations.remove(serverTemplate.templateIdentifier(), creation)) return; // Already timed out, a server has been requested
+                serverManager.requestServer(serverTemplate);
+            });
+    }
+
+    /**
+     * Called when a mini-game instance of the template can accept players, ends the pending creation of the template.
+     */
+    public void miniGameInstanceAvailable(ServerTemplate serverTemplate) {
+        pendingCreations.remove(serverTemplate.templateIdentifier());
+    }
+
+    private record PendingCreation(String serverId, long requestTime) { }
+}
@@ -7,58 +7,129 @@ import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import net.defade.rhenium.Rhenium;
 import net.defade.rhenium.config.ServerTemplate;
+import net.defade.rhenium.profiling.PlayerPlacementEvent;
 import net.defade.rhenium.servers.instances.MiniGameInstance;
 import net.defade.rhenium.servers.instances.ServerInstance;
+import net.defade.rhenium.servers.instances.ServerState;
 import net.defade.rhenium.utils.Utils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class PlayerServerDispatcher implements HttpHandler {
     private static final Logger LOGGER = LogManager.getLogger(PlayerServerDispatcher.class);
     private static final int MAX_WAIT_TIME = 15000; // If the player is not moved within 15 seconds, cancel the request
+    private static final int COLD_START_MAX_WAIT_TIME = 120000; // Used instead when the template is waking up from zero servers
+    private static final int RETRY_AFTER = 5; // In seconds, sent to the players refused because the wait queue is full
 
     private final Rhenium rhenium;
     private final ServerManager serverManager;
+    private final MiniGameProvisioner miniGameProvisioner;
 
     private final Map<String, MiniGameInstanceHolder> playersRequiredToRejoin = new HashMap<>();
-    private final Map<String, ServerMoveRequest> playerServerRequests = new HashMap<>();
+    private final Map<String, WaitQueue> waitQueues = new ConcurrentHashMap<>(); // Server template name -> wait queue
 
     public PlayerServerDispatcher(Rhenium rhenium, ServerManager serverManager) {
         this.rhenium = rhenium;
         this.serverManager = serverManager;
+        this.miniGameProvisioner = new MiniGameProvisioner(serverManager);
 
         rhenium.getRestServer().registerEndpoint("/player-dispatcher", this);
     }
 
+    /**
+     * Removes the expired requests and moves the waiting players of every template.
+     */
     public void checkRequests() {
-        playerServerRequests.entrySet().removeIf(entry -> {
-            String uuid = entry.getKey();
-            ServerMoveRequest request = entry.getValue();
+        long now = System.currentTimeMillis();
 
-            if (System.currentTimeMillis() - request.time > MAX_WAIT_TIME) {
-                LOGGER.warn("Failed to move player {} to server {}.", uuid, request.serverTemplateName);
-                return true;
-            }
+        waitQueues.forEach((serverTemplateName, waitQueue) -> {
+            ServerTemplate serverTemplate = rhenium.getRheniumConfig().getTemplateByName(serverTemplateName);
+
+            removeExpiredPlayers(serverTemplateName, serverTemplate, waitQueue, now);
+            if (waitQueue.size() == 0) return;
 
-            ServerTemplate serverTemplate = rhenium.getRheniumConfig().getTemplateByName(request.serverTemplateName);
             if (serverTemplate == null) {
-                LOGGER.warn("Failed to move player {} to server {}, the server template is null.", uuid, request.serverTemplateName);
-                return true;
+                String uuid;
+                while ((uuid = waitQueue.poll()) != null) {
+                    LOGGER.warn("Failed to move player {} to server {}, the server template is null.", uuid, serverTemplateName);
+                }
+                return;
             }
 
-            MiniGameInstance targetMiniGameInstance = findBestMiniGameInstance(serverTemplate);
-            if (targetMiniGameInstance == null) {
-                return false;
-            }
+            moveWaitingPlayers(serverTemplate, waitQueue);
+        });
+    }
+
+    /**
+     * Moves the waiting players of a template to its servers, as long as they can accept players.
+     */
+    public void checkRequests(ServerTemplate serverTemplate) {
+        WaitQueue waitQueue = waitQueues.get(serverTemplate.templateName());
+        if (waitQueue == null) return;
+
+        removeExpiredPlayers(serverTemplate.templateName(), serverTemplate, waitQueue, System.currentTimeMillis());
+        if (waitQueue.size() == 0) return;
+
+        moveWaitingPlayers(serverTemplate, waitQueue);
+    }
+
+    /**
+     * Removes the players that have been waiting for too long.
+     *
+     * @param serverTemplate the template of the queue, null if it has been removed from the configuration
+     */
+    private void removeExpiredPlayers(String serverTemplateName, ServerTemplate serverTemplate, WaitQueue waitQueue, long now) {
+        // The players waiting for a template that is waking up have to wait for a pod to be started
+        int maxWaitTime = serverTemplate != null && serverManager.getColdStartTracker().isWakingUp(serverTemplate) ? COLD_START_MAX_WAIT_TIME : MAX_WAIT_TIME;
+        for (String uuid : waitQueue.removeExpired(now, maxWaitTime)) {
+            LOGGER.warn("Failed to move player {} to server {}.", uuid, serverTemplateName);
+        }
+    }
+
+    private void moveWaitingPlayers(ServerTemplate serverTemplate, WaitQueue waitQueue) {
+        // The servers are only fetched once, the players sent during this check are counted locally
+        List<ServerInstance> serverInstances = serverManager.getServerInstances(serverTemplate);
+        Map<String, Integer> sentPlayers = new HashMap<>();
+
+        MiniGameInstance targetMiniGameInstance;
+        while (true) {
+            PlayerPlacementEvent event = new PlayerPlacementEvent();
+            event.begin();
 
+            targetMiniGameInstance = findBestMiniGameInstance(serverTemplate, serverInstances, sentPlayers);
+            if (targetMiniGameInstance == null) break;
+            String uuid = waitQueue.poll();
+            if (uuid == null) break;
+
+            sentPlayers.merge(targetMiniGameInstance.getServerId(), 1, Integer::sum);
+            sentPlayers.merge(targetMiniGameInstance.getMiniGameInstanceId().toString(), 1, Integer::sum);
             sendPlayerToMiniGameInstance(uuid, targetMiniGameInstance);
-            return true;
-        });
+            commitPlacement(event, uuid, serverTemplate, "dequeued", targetMiniGameInstance.getServerId());
+        }
+
+        if (targetMiniGameInstance != null) {
+            miniGameProvisioner.miniGameInstanceAvailable(serverTemplate);
+        } else if (waitQueue.size() > 0) {
+            // Every mini-game instance is full, a server with room left can create a new one faster than a new pod
+            miniGameProvisioner.provision(serverTemplate, serverInstances, sentPlayers);
+        }
+    }
+
+    /**
+     * @return the amount of players waiting for a server of the template
+     */
+    public int getQueuedPlayers(ServerTemplate serverTemplate) {
+        WaitQueue waitQueue = waitQueues.get(serverTemplate.templateName());
+        return waitQueue != null ? waitQueue.size() : 0;
     }
 
     public void sendPlayerToMiniGameInstance(String playerUUID, MiniGameInstance miniGameInstance) {
@@ -72,6 +143,7 @@ public class PlayerServerDispatcher implements HttpHandler {
 
         Utils.sendHTTPRequestToVelocity(
             rhenium,
+            playerUUID,
             "/servers/player-move",
             "POST",
             "{\"player-uuid\":\"" + playerUUID + "\",\"server-id\":\"" + serverId + "\",\"mini-game-instance\":\"" + miniGameId + "\"}"
@@ -81,21 +153,48 @@ public class PlayerServerDispatcher implements HttpHandler {
         });
     }
 
+    /**
+     * Tells the proxy of a player that was waiting in a queue that the player has been removed from it, with the same
+     * information as a player refused because the queue is full.
+     */
+    private void sendQueueRefusal(String playerUUID, ServerTemplate serverTemplate, int queueSize) {
+        JsonObject body = new JsonObject();
+        body.addProperty("player-uuid", playerUUID);
+        body.addProperty("server", serverTemplate.templateName());
+        body.addProperty("queue-size", queueSize);
+        body.addProperty("retry-after", RETRY_AFTER);
+
+        Utils.sendHTTPRequestToVelocity(rhenium, playerUUID, "/servers/player-refused", "POST", body.toString()).exceptionally(throwable -> {
+            LOGGER.error("Failed to tell player {} that they have been removed from the wait queue of {}.", playerUUID, serverTemplate.templateName(), throwable);
+            return null;
+        });
+    }
+
     private MiniGameInstance findBestMiniGameInstance(ServerTemplate serverTemplate) {
         if (serverTemplate == null) return null;
 
+        return findBestMiniGameInstance(serverTemplate, serverManager.getServerInstances(serverTemplate), Map.of());
+    }
+
+    /**
+     * @param sentPlayers the players already sent to a server or a mini-game instance that aren't counted by the server yet,
+     *                    by server id and by mini-game instance id
+     */
+    private MiniGameInstance findBestMiniGameInstance(ServerTemplate serverTemplate, List<ServerInstance> serverInstances, Map<String, Integer> sentPlayers) {
         MiniGameInstance bestMiniGameInstance = null;
         int highestPlayers = -1;
 
-        for (ServerInstance serverInstance : serverManager.getServerInstances(serverTemplate)) {
-            if (serverInstance.isScheduledForDeletion() || serverInstance.getOnlinePlayers() >= serverTemplate.maxPlayers()) continue;
+        for (ServerInstance serverInstance : serverInstances) {
+            int serverPlayers = serverInstance.getOnlinePlayers() + sentPlayers.getOrDefault(serverInstance.getServerId(), 0);
+            if (serverInstance.getState() != ServerState.READY || serverPlayers >= serverTemplate.maxPlayers()) continue;
 
             for (MiniGameInstance miniGameInstance : serverInstance.getMiniGameInstances().values()) {
                 if (!miniGameInstance.isAcceptingPlayers()) continue;
 
-                if (miniGameInstance.getOnlinePlayers() < miniGameInstance.getMaxPlayers() && miniGameInstance.getOnlinePlayers() > highestPlayers) {
+                int miniGamePlayers = miniGameInstance.getOnlinePlayers() + sentPlayers.getOrDefault(miniGameInstance.getMiniGameInstanceId().toString(), 0);
+                if (miniGamePlayers < miniGameInstance.getMaxPlayers() && miniGamePlayers > highestPlayers) {
                     bestMiniGameInstance = miniGameInstance;
-                    highestPlayers = miniGameInstance.getOnlinePlayers();
+                    highestPlayers = miniGamePlayers;
                 }
             }
         }
@@ -103,20 +202,94 @@ public class PlayerServerDispatcher implements HttpHandler {
         return bestMiniGameInstance;
     }
 
-    private void movePlayerToServerTemplate(String playerUUID, ServerTemplate serverTemplate) {
+    /**
+     * Moves the player to the best mini-game instance of the template, or adds the player to the wait queue of the template.
+     *
+     * @return the result of the admission in the wait queue, the position is 0 if the player has been moved right away
+     */
+    private WaitQueue.Admission movePlayerToServerTemplate(String playerUUID, ServerTemplate serverTemplate, QueuePriority priority) {
         if (serverTemplate == null) {
             LOGGER.warn("Failed to move player {} to a server, the server template is null.", playerUUID); // TODO: disconnect the player
-            return;
+            return new WaitQueue.Admission(true, 0, null);
         }
 
-        MiniGameInstance targetMiniGameInstance = findBestMiniGameInstance(serverTemplate);
+        PlayerPlacementEvent event = new PlayerPlacementEvent();
+        event.begin();
 
-        if (targetMiniGameInstance == null) {
-            playerServerRequests.put(playerUUID, new ServerMoveRequest(serverTemplate.templateName(), System.currentTimeMillis())); // Store the request for later retry
-            LOGGER.info("Player {} is waiting for a server to be available.", playerUUID);
-        } else {
+        // A player can only wait for one template at a time
+        waitQueues.values().forEach(waitQueue -> waitQueue.remove(playerUUID));
+
+        MiniGameInstance targetMiniGameInstance = findBestMiniGameInstance(serverTemplate);
+        if (targetMiniGameInstance != null) {
+            miniGameProvisioner.miniGameInstanceAvailable(serverTemplate);
             sendPlayerToMiniGameInstance(playerUUID, targetMiniGameInstance);
             LOGGER.info("Player {} moved to server {}.", playerUUID, targetMiniGameInstance.getServerId());
+            serverManager.getStateRecorder().recordJoin(serverTemplate, playerUUID, "moved");
+            commitPlacement(event, playerUUID, serverTemplate, "moved", targetMiniGameInstance.getServerId());
+            return new WaitQueue.Admission(true, 0, null);
+        }
+
+        WaitQueue waitQueue = waitQueues.computeIfAbsent(serverTemplate.templateName(), name -> new WaitQueue(serverTemplate.maxQueuedPlayers()));
+        WaitQueue.Admission admission = waitQueue.offer(playerUUID, priority, System.currentTimeMillis());
+        serverManager.getStateRecorder().recordJoin(serverTemplate, playerUUID, admission.accepted() ? "queued" : "refused");
+        commitPlacement(event, playerUUID, serverTemplate, admission.accepted() ? "queued" : "refused", null);
+        if (!admission.accepted()) {
+            LOGGER.warn("The wait queue of {} is full, refused player {}.", serverTemplate.templateName(), playerUUID);
+        } else {
+            LOGGER.info("Player {} is waiting for a server to be available (position {}).", playerUUID, admission.position());
+            serverManager.requestReconcile(serverTemplate);
+            if (admission.evictedPlayer() != null) {
+                LOGGER.warn("The wait queue of {} is full, removed player {} to make room for a higher priority player.", serverTemplate.templateName(), admission.evictedPlayer());
+                sendQueueRefusal(admission.evictedPlayer(), serverTemplate, waitQueue.size());
+            }
+        }
+
+        return admission;
+    }
+
+    private static void commitPlacement(PlayerPlacementEvent event, String playerUUID, ServerTemplate serverTemplate, String result, String serverId) {
+        if (!event.shouldCommit()) return;
+
+        event.player = playerUUID;
+        event.template = serverTemplate.templateName();
+        event.result = result;
+        event.serverId = serverId;
+        event.commit();
+    }
+
+    private static void sendAdmissionResponse(HttpExchange exchange, WaitQueue.Admission admission) throws IOException {
+        if (admission.accepted() && admission.position() == 0) {
+            exchange.sendResponseHeaders(200, 0);
+            return;
+        }
+
+        JsonObject response = new JsonObject();
+        int responseCode;
+        if (admission.accepted()) {
+            response.addProperty("queue-position", admission.position());
+            responseCode = 200;
+        } else {
+            response.addProperty("queue-size", admission.position());
+            response.addProperty("retry-after", RETRY_AFTER);
+            exchange.getResponseHeaders().set("Retry-After", String.valueOf(RETRY_AFTER));
+            responseCode = 429;
+        }
+
+        byte[] responseBytes = response.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(responseCode, responseBytes.length);
+        try (OutputStream outputStream = exchange.getResponseBody()) {
+            outputStream.write(responseBytes);
+        }
+    }
+
+    private static QueuePriority getPriority(JsonObject body, QueuePriority defaultPriority) {
+        if (!body.has("priority")) return defaultPriority;
+
+        try {
+            return QueuePriority.valueOf(body.get("priority").getAsString().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException exception) {
+            return defaultPriority;
         }
     }
 
@@ -127,6 +300,8 @@ public class PlayerServerDispatcher implements HttpHandler {
         switch (path) {
             case "/player-dispatcher/player-join" -> {
                 String playerUUID = body.get("player-uuid").getAsString();
+                String proxyId = body.has("proxy-id") ? body.get("proxy-id").getAsString() : null;
+                rhenium.getProxyRegistry().registerPlayer(playerUUID, proxyId, exchange.getRemoteAddress().getAddress().getHostAddress());
 
                 MiniGameInstanceHolder playerMiniGameInstance = playersRequiredToRejoin.get(playerUUID);
                 if (playerMiniGameInstance != null) {
@@ -140,16 +315,26 @@ public class PlayerServerDispatcher implements HttpHandler {
                 }
 
                 String requestedServerTemplateName = body.has("server") ? body.get("server").getAsString() : "hub"; // TODO: make the default server configurable
-                movePlayerToServerTemplate(playerUUID, rhenium.getRheniumConfig().getTemplateByName(requestedServerTemplateName));
+                WaitQueue.Admission admission = movePlayerToServerTemplate(playerUUID, rhenium.getRheniumConfig().getTemplateByName(requestedServerTemplateName),
+                    getPriority(body, QueuePriority.HIGH));
 
-                exchange.sendResponseHeaders(200, 0);
+                sendAdmissionResponse(exchange, admission);
             }
             case "/player-dispatcher/player-move" -> {
                 String playerUUID = body.get("player-uuid").getAsString();
                 String serverTemplateName = body.get("server").getAsString();
 
-                movePlayerToServerTemplate(playerUUID, rhenium.getRheniumConfig().getTemplateByName(serverTemplateName));
+                WaitQueue.Admission admission = movePlayerToServerTemplate(playerUUID, rhenium.getRheniumConfig().getTemplateByName(serverTemplateName),
+                    getPriority(body, QueuePriority.NORMAL));
                 playersRequiredToRejoin.remove(playerUUID);
+                sendAdmissionResponse(exchange, admission);
+            }
+            case "/player-dispatcher/player-disconnect" -> {
+                String playerUUID = body.get("player-uuid").getAsString();
+                String proxyId = body.has("proxy-id") ? body.get("proxy-id").getAsString() : null;
+
+                rhenium.getProxyRegistry().unregisterPlayer(playerUUID, proxyId);
+                waitQueues.values().forEach(waitQueue -> waitQueue.remove(playerUUID));
                 exchange.sendResponseHeaders(200, 0);
             }
             case "/player-dispatcher/update-players-required-to-rejoin" -> {
@@ -167,5 +352,4 @@ public class PlayerServerDispatcher implements HttpHandler {
     }
 
     private record MiniGameInstanceHolder(String serverId, UUID miniGameInstanceId) { }
-    private record ServerMoveRequest(String serverTemplateName, long time) { }
 }
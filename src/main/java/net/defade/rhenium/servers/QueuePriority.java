@@ -0,0 +1,17 @@
+package net.defade.rhenium.servers;
+
+/**
+ * The priority of a player waiting for a server. When a wait queue is full, the players with the lowest
+ * priority are the first to be refused.
+ */
+public enum QueuePriority {
+    /**
+     * Players that aren't connected to any server yet.
+     */
+    HIGH,
+    /**
+     * Players moving from a server to another.
+     */
+    NORMAL,
+    LOW
+}
@@ -0,0 +1,109 @@
+package net.defade.rhenium.servers;
+
+import io.kubernetes.client.openapi.models.V1Pod;
+import net.defade.rhenium.utils.Utils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+import static net.defade.rhenium.servers.instances.ServerInstance.SERVER_TEMPLATE_IDENTIFIER_LABEL;
+
+/**
+ * Periodically checks if the game servers can accept players by calling their REST API.
+ * Every running pod is probed in parallel.
+ */
+public class ReadinessProber {
+    private static final Logger LOGGER = LogManager.getLogger(ReadinessProber.class);
+    private static final String READINESS_PATH = "/server/ready";
+    private static final long PROBE_INTERVAL = 2 * 1000;
+    private static final int PROBE_THREADS = 8;
+
+    private final Supplier<List<V1Pod>> podsSupplier;
+    private final BiConsumer<String, String> readinessChangeListener;
+
+    private final Map<String, Boolean> readyServers = new ConcurrentHashMap<>(); // Server id -> result of the last probe
+    private final Set<String> probingServers = ConcurrentHashMap.newKeySet();
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "readiness-prober");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ExecutorService probeExecutor;
+
+    /**
+     * @param podsSupplier supplies the pods of the server instances
+     * @param readinessChangeListener called with the server id and the template identifier when a server becomes ready or stops being ready
+     */
+    public ReadinessProber(Supplier<List<V1Pod>> podsSupplier, BiConsumer<String, String> readinessChangeListener) {
+        this.podsSupplier = podsSupplier;
+        this.readinessChangeListener = readinessChangeListener;
+
+        AtomicInteger threadCount = new AtomicInteger();
+        this.probeExecutor = Executors.newFixedThreadPool(PROBE_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "readiness-probe-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void start() {
+        scheduler.scheduleWithFixedDelay(this::probeAll, 0, PROBE_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        scheduler.shutdownNow();
+        probeExecutor.shutdownNow();
+    }
+
+    /**
+     * @return if the last probe of the server succeeded
+     */
+    public boolean isReady(String serverId) {
+        return readyServers.getOrDefault(serverId, false);
+    }
+
+    private void probeAll() {
+        Set<String> runningServers = new HashSet<>();
+
+        for (V1Pod pod : podsSupplier.get()) {
+            if (pod.getStatus() == null || !"Running".equals(pod.getStatus().getPhase())) continue;
+            if (pod.getMetadata().getDeletionTimestamp() != null || pod.getStatus().getPodIP() == null) continue;
+
+            String serverId = pod.getMetadata().getName();
+            runningServers.add(serverId);
+
+            // Don't pile up probes on a server that is slow to answer
+            if (probingServers.add(serverId)) {
+                probe(serverId, pod.getMetadata().getLabels().get(SERVER_TEMPLATE_IDENTIFIER_LABEL), pod.getStatus().getPodIP());
+            }
+        }
+
+        readyServers.keySet().retainAll(runningServers);
+    }
+
+    private void probe(String serverId, String templateIdentifier, String serverIp) {
+        Utils.sendHTTPRequest("http://" + serverIp + READINESS_PATH, "GET", "", probeExecutor)
+            .handle((result, throwable) -> throwable == null)
+            .thenAccept(ready -> {
+                probingServers.remove(serverId);
+
+                Boolean wasReady = readyServers.put(serverId, ready);
+                if (wasReady == null ? ready : wasReady != ready) {
+                    LOGGER.debug("Readiness probe of the server {} changed to {}.", serverId, ready);
+                    readinessChangeListener.accept(serverId, templateIdentifier);
+                }
+            });
+    }
+}
@@ -0,0 +1,91 @@
+package net.defade.rhenium.servers;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Runs the reconciliation of the templates whose state changed.
+ * Templates are marked dirty by events, and are reconciled after a short delay so that a burst of events only
+ * triggers a single reconciliation. A full reconciliation of every template is also done periodically in case an
+ * event has been missed.
+ * Every reconciliation runs on the same thread, so they never run concurrently.
+ */
+public class ReconcileScheduler {
+    private static final Logger LOGGER = LogManager.getLogger(ReconcileScheduler.class);
+    private static final long DEBOUNCE_DELAY = 250;
+
+    private final Consumer<String> templateReconciler;
+    private final Runnable fullReconciler;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> new Thread(runnable, "reconciler"));
+
+    private final Set<String> dirtyTemplates = new LinkedHashSet<>();
+    private boolean reconcileScheduled = false;
+
+    /**
+     * @param templateReconciler reconciles a single template from its identifier
+     * @param fullReconciler reconciles every template
+     */
+    public ReconcileScheduler(Consumer<String> templateReconciler, Runnable fullReconciler) {
+        this.templateReconciler = templateReconciler;
+        this.fullReconciler = fullReconciler;
+    }
+
+    /**
+     * @param resyncInterval the interval between two full reconciliations, in milliseconds
+     */
+    public void start(long resyncInterval) {
+        executor.scheduleWithFixedDelay(() -> run("full", fullReconciler), 0, resyncInterval, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Schedules the reconciliation of a template.
+     */
+    public void markDirty(String templateIdentifier) {
+        synchronized (dirtyTemplates) {
+            dirtyTemplates.add(templateIdentifier);
+            if (reconcileScheduled) return;
+            reconcileScheduled = true;
+        }
+
+        executor.schedule(this::reconcileDirtyTemplates, DEBOUNCE_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Schedules a full reconciliation, used when every template could have changed.
+     */
+    public void requestFullReconcile() {
+        executor.execute(() -> run("full", fullReconciler));
+    }
+
+    private void reconcileDirtyTemplates() {
+        Set<String> templates;
+        synchronized (dirtyTemplates) {
+            templates = new LinkedHashSet<>(dirtyTemplates);
+            dirtyTemplates.clear();
+            reconcileScheduled = false;
+        }
+
+        for (String templateIdentifier : templates) {
+            run(templateIdentifier, () -> templateReconciler.accept(templateIdentifier));
+        }
+    }
+
+    private static void run(String name, Runnable reconciler) {
+        // An exception would cancel the scheduled task
+        try {
+            reconciler.run();
+        } catch (Exception exception) {
+            LOGGER.error("Failed to reconcile {}.", name, exception);
+        }
+    }
+}
@@ -1,114 +1,313 @@
 package net.defade.rhenium.servers;
 
-import io.kubernetes.client.custom.Quantity;
 import io.kubernetes.client.openapi.ApiException;
-import io.kubernetes.client.openapi.models.V1Container;
-import io.kubernetes.client.openapi.models.V1ContainerPort;
-import io.kubernetes.client.openapi.models.V1EnvVar;
-import io.kubernetes.client.openapi.models.V1EnvVarSource;
-import io.kubernetes.client.openapi.models.V1LocalObjectReference;
-import io.kubernetes.client.openapi.models.V1ObjectMeta;
 import io.kubernetes.client.openapi.models.V1Pod;
-import io.kubernetes.client.openapi.models.V1PodList;
-import io.kubernetes.client.openapi.models.V1PodSpec;
-import io.kubernetes.client.openapi.models.V1ResourceRequirements;
-import io.kubernetes.client.openapi.models.V1SecretKeySelector;
 import net.defade.rhenium.Rhenium;
 import net.defade.rhenium.config.ServerTemplate;
+import net.defade.rhenium.kubernetes.KubernetesCluster;
+import net.defade.rhenium.kubernetes.RequestPriority;
+import net.defade.rhenium.profiling.ReconcilePhaseEvent;
+import net.defade.rhenium.replay.StateRecorder;
 import net.defade.rhenium.servers.instances.ServerInstance;
+import net.defade.rhenium.servers.instances.ServerState;
+import net.defade.rhenium.servers.logs.PodLogArchiver;
+import net.defade.rhenium.servers.scaling.ScalingPlan;
+import net.defade.rhenium.servers.scaling.ScalingPolicy;
+import net.defade.rhenium.servers.scaling.ScalingState;
+import net.defade.rhenium.servers.scaling.ServerSnapshot;
 import net.defade.rhenium.utils.Utils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Base64;
-import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.TimerTask;
-
-import static net.defade.rhenium.servers.instances.ServerInstance.SERVER_TEMPLATE_IDENTIFIER_LABEL;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
 
 public class ServerManager {
     private static final Logger LOGGER = LogManager.getLogger(ServerManager.class);
-    private static final int MIN_SERVERS = 2;
+    private static final long SERVER_NOTIFICATION_DEADLINE = 10 * 1000; // A server that can't be notified within this delay is stopped anyway
+    private static final long PENDING_SERVER_TIMEOUT = 60 * 1000; // Time after which a server that never appeared is no longer waited for
 
     private final Rhenium rhenium;
 
     // Values used when the instance is the leader
     private final PlayerServerDispatcher playerServerDispatcher;
-
-    public ServerManager(Rhenium rhenium) {
+    private final ServerPodFactory serverPodFactory;
+    private final PodLogArchiver podLogArchiver;
+    private final List<ServerPodWatcher> serverPodWatchers = new ArrayList<>(); // One per cluster
+    private final ReconcileScheduler reconcileScheduler;
+    private final ReadinessProber readinessProber;
+    private final StateRecorder stateRecorder;
+    private final ColdStartTracker coldStartTracker = new ColdStartTracker();
+    private final ClusterStateEndpoint clusterStateEndpoint;
+
+    // Servers whose creation has been requested but whose pod hasn't been seen yet
+    private final Map<String, PendingServer> pendingServers = new ConcurrentHashMap<>();
+    // Last known state of each server, used to log the transitions
+    private final Map<String, ServerState> serverStates = new ConcurrentHashMap<>();
+    // Template identifier -> last time the template had a player connected or waiting, used to scale idle templates to zero
+    private final Map<String, Long> lastActivityTimes = new ConcurrentHashMap<>();
+    // Template identifier -> what the scaling policy remembers between two reconciliations
+    private final Map<String, ScalingState> scalingStates = new ConcurrentHashMap<>();
+    // Templates that need a new server because their servers couldn't create a new mini-game instance
+    private final Set<String> serverRequests = ConcurrentHashMap.newKeySet();
+    // Servers being notified and deleted, they can still be listed in the meantime
+    private final Set<String> stoppingServers = ConcurrentHashMap.newKeySet();
+
+    public ServerManager(Rhenium rhenium) throws IOException {
         this.rhenium = rhenium;
         this.playerServerDispatcher = new PlayerServerDispatcher(rhenium, this);
+        this.serverPodFactory = new ServerPodFactory(rhenium);
+        this.podLogArchiver = new PodLogArchiver(rhenium);
+        this.reconcileScheduler = new ReconcileScheduler(this::reconcileTemplate, this::reconcileAllTemplates);
+        for (KubernetesCluster kubernetesCluster : rhenium.getKubernetesClusters()) {
+            serverPodWatchers.add(new ServerPodWatcher(kubernetesCluster, reconcileScheduler::markDirty));
+        }
+        this.readinessProber = new ReadinessProber(this::getPods, (serverId, templateIdentifier) -> reconcileScheduler.markDirty(templateIdentifier));
+        this.stateRecorder = new StateRecorder(rhenium.getRheniumConfig());
+        this.clusterStateEndpoint = new ClusterStateEndpoint(rhenium.getRestServer());
     }
 
     public void start() {
-        rhenium.getTimer().scheduleAtFixedRate(new TimerTask() {
-            @Override
-            public void run() {
-                checkOutdatedServers();
-                checkNewNeededServers();
-                downscaleServers();
-                deleteEmptyServers();
-                playerServerDispatcher.checkRequests();
+        stateRecorder.start();
+        serverPodWatchers.forEach(ServerPodWatcher::start);
+        readinessProber.start();
+        rhenium.getRheniumConfig().watch(reconcileScheduler::requestFullReconcile);
+        reconcileScheduler.start(rhenium.getRheniumConfig().getResyncInterval());
+    }
+
+    public void stop() {
+        reconcileScheduler.stop();
+        readinessProber.stop();
+        serverPodWatchers.forEach(ServerPodWatcher::stop);
+        podLogArchiver.stop();
+        stateRecorder.stop();
+        clusterStateEndpoint.stop();
+    }
+
+    public StateRecorder getStateRecorder() {
+        return stateRecorder;
+    }
+
+    public ColdStartTracker getColdStartTracker() {
+        return coldStartTracker;
+    }
+
+    /**
+     * @return the scaling state of the template, with its churn metrics
+     */
+    public ScalingState getScalingState(ServerTemplate serverTemplate) {
+        return scalingStates.computeIfAbsent(serverTemplate.templateIdentifier(), identifier -> new ScalingState());
+    }
+
+    /**
+     * Schedules the reconciliation of a template, for example when a player is waiting for one of its servers.
+     */
+    public void requestReconcile(ServerTemplate serverTemplate) {
+        reconcileScheduler.markDirty(serverTemplate.templateIdentifier());
+    }
+
+    /**
+     * Requests a new server for the template, used when the existing servers couldn't create a new mini-game instance.
+     * No server is created if one is already starting.
+     */
+    public void requestServer(ServerTemplate serverTemplate) {
+        serverRequests.add(serverTemplate.templateIdentifier());
+        reconcileScheduler.markDirty(serverTemplate.templateIdentifier());
+    }
+
+    /**
+     * Reconciles every template, the terminated pods and the pods of the templates that no longer exist.
+     * This is only a safety net in case an event has been missed, most changes are handled by {@link #reconcileTemplate(String)}.
+     */
+    private void reconcileAllTemplates() {
+        runPhase("check-outdated-servers", null, this::checkOutdatedServers);
+        for (ServerTemplate serverTemplate : rhenium.getRheniumConfig().getTemplates()) {
+            runPhase("scaling", serverTemplate.templateName(), () -> reconcileTemplate(serverTemplate));
+        }
+        runPhase("delete-terminated-pods", null, () -> {
+            for (ServerPodWatcher serverPodWatcher : serverPodWatchers) {
+                deleteTerminatedPods(serverPodWatcher.getKubernetesCluster(), serverPodWatcher.getPods());
+            }
+        });
+        runPhase("dispatch", null, playerServerDispatcher::checkRequests);
+
+        serverStates.keySet().removeIf(serverId -> getPodWatcher(serverId) == null);
+        Set<String> templateIdentifiers = rhenium.getRheniumConfig().getTemplates().stream()
+            .map(ServerTemplate::templateIdentifier)
+            .collect(Collectors.toSet());
+        serverPodFactory.retainTemplates(templateIdentifiers);
+        clusterStateEndpoint.retainTemplates(templateIdentifiers);
+        clusterStateEndpoint.updateClusters(rhenium.getKubernetesClusters());
+    }
+
+    private void reconcileTemplate(String templateIdentifier) {
+        ServerTemplate serverTemplate = rhenium.getRheniumConfig().getTemplateByIdentifier(templateIdentifier);
+        if (serverTemplate == null) return; // The servers of removed templates are handled by the full reconciliation
+
+        String templateName = serverTemplate.templateName();
+        runPhase("scaling", templateName, () -> reconcileTemplate(serverTemplate));
+        runPhase("delete-terminated-pods", templateName, () -> {
+            for (ServerPodWatcher serverPodWatcher : serverPodWatchers) {
+                deleteTerminatedPods(serverPodWatcher.getKubernetesCluster(), serverPodWatcher.getPods(templateIdentifier));
+            }
+        });
+        runPhase("dispatch", templateName, () -> playerServerDispatcher.checkRequests(serverTemplate));
+    }
+
+    /**
+     * Runs a phase of the reconciliation, recorded as a JFR event when a recording is running.
+     */
+    private static void runPhase(String phase, String templateName, Runnable action) {
+        ReconcilePhaseEvent event = new ReconcilePhaseEvent();
+        event.begin();
+        try {
+            action.run();
+        } finally {
+            if (event.shouldCommit()) {
+                event.phase = phase;
+                event.template = templateName;
+                event.commit();
             }
-        }, 0, 2 * 1000);
+        }
+    }
+
+    private void reconcileTemplate(ServerTemplate serverTemplate) {
+        List<ServerInstance> serverInstances = getServerInstances(serverTemplate);
+        Map<String, ServerInstance> serverInstancesById = new HashMap<>();
+        for (ServerInstance serverInstance : serverInstances) {
+            serverInstancesById.put(serverInstance.getServerId(), serverInstance);
+        }
+
+        long now = System.currentTimeMillis();
+        int pendingServers = countPendingServers(serverTemplate);
+        int queuedPlayers = playerServerDispatcher.getQueuedPlayers(serverTemplate);
+        stateRecorder.recordTick(serverTemplate, serverInstances, queuedPlayers, pendingServers);
+
+        if (queuedPlayers > 0 || serverInstances.stream().anyMatch(serverInstance -> serverInstance.getOnlinePlayers() > 0)) {
+            lastActivityTimes.put(serverTemplate.templateIdentifier(), now);
+        }
+        long idleTime = now - lastActivityTimes.computeIfAbsent(serverTemplate.templateIdentifier(), identifier -> now);
+
+        ScalingPlan scalingPlan = ScalingPolicy.plan(serverTemplate, serverInstances.stream().map(ServerSnapshot::of).toList(), pendingServers, idleTime,
+            getScalingState(serverTemplate), now);
+
+        // A template scaled to zero is woken up by the first player waiting for it
+        boolean hasServers = pendingServers > 0 || serverInstances.stream().anyMatch(serverInstance -> serverInstance.getState() != ServerState.TERMINATING);
+        if (serverTemplate.scaleToZeroAfter() > 0 && queuedPlayers > 0 && !hasServers && scalingPlan.serversToCreate() > 0) {
+            coldStartTracker.wakeUp(serverTemplate, now);
+        }
+        if (serverInstances.stream().anyMatch(serverInstance -> serverInstance.getState() == ServerState.READY)) {
+            coldStartTracker.ready(serverTemplate, now);
+        } else {
+            coldStartTracker.notReady(serverTemplate, hasServers || scalingPlan.serversToCreate() > 0, now);
+        }
+
+        for (String serverId : scalingPlan.serversToReuse()) {
+            setScheduledForDeletion(serverInstancesById.get(serverId), false);
+        }
+        for (int i = 0; i < scalingPlan.serversToCreate(); i++) {
+            createServer(serverTemplate);
+        }
+        if (serverRequests.remove(serverTemplate.templateIdentifier()) && scalingPlan.serversToCreate() == 0 && pendingServers == 0
+            && serverInstances.stream().noneMatch(serverInstance -> serverInstance.getState() == ServerState.PROVISIONING)) {
+            LOGGER.info("No server of {} could create a new mini-game instance, creating a new server.", serverTemplate.templateName());
+            createServer(serverTemplate);
+        }
+        for (String serverId : scalingPlan.serversToDrain()) {
+            setScheduledForDeletion(serverInstancesById.get(serverId), true);
+            LOGGER.info("Too many servers running! Flagged the server {} for deletion.", serverId);
+        }
+        for (String serverId : scalingPlan.serversToStop()) {
+            stopServer(serverId);
+        }
+
+        for (ServerInstance serverInstance : serverInstances) {
+            ServerState state = serverInstance.getState();
+            ServerState previousState = serverStates.put(serverInstance.getServerId(), state);
+            if (previousState != state) {
+                LOGGER.info("Server {} is now {} (was {}).", serverInstance.getServerId(), state, previousState);
+            }
+        }
+
+        List<String> templateStoppingServers = serverInstances.stream()
+            .map(ServerInstance::getServerId)
+            .filter(stoppingServers::contains)
+            .toList();
+        clusterStateEndpoint.updateTemplate(serverTemplate, serverInstances, queuedPlayers, countPendingServers(serverTemplate), templateStoppingServers,
+            coldStartTracker.isWakingUp(serverTemplate), getScalingState(serverTemplate).getChurnMetrics(), coldStartTracker.getStats(serverTemplate));
     }
 
     private List<ServerInstance> getAllServerInstances() {
         List<ServerInstance> serverInstances = new ArrayList<>();
 
-        try {
-            V1PodList podList = rhenium.getKubernetesClient()
-                .listNamespacedPod(rhenium.getRheniumConfig().getK8sNamespace())
-                .labelSelector("type=server-instance")
-                .execute();
-
-            for (V1Pod item : podList.getItems()) {
-                if (item.getStatus() != null && item.getStatus().getPhase().equals("Running")) {
-                    serverInstances.add(new ServerInstance(rhenium, item));
+        for (ServerPodWatcher serverPodWatcher : serverPodWatchers) {
+            for (V1Pod item : serverPodWatcher.getPods()) {
+                if (item.getStatus() != null && "Running".equals(item.getStatus().getPhase())) {
+                    serverInstances.add(new ServerInstance(serverPodWatcher.getKubernetesCluster(), item, readinessProber.isReady(item.getMetadata().getName())));
                 }
             }
-        } catch (ApiException exception) {
-            LOGGER.error("Failed to get the server instances running.", exception);
-            // TODO: shouldn't we return the exception here so that the caller can handle it?
         }
 
         return serverInstances;
     }
 
+    /**
+     * @return the servers of the template in every cluster
+     */
     public List<ServerInstance> getServerInstances(ServerTemplate serverTemplate) {
         List<ServerInstance> serverInstances = new ArrayList<>();
 
-        try {
-            V1PodList podList = rhenium.getKubernetesClient()
-                .listNamespacedPod(rhenium.getRheniumConfig().getK8sNamespace())
-                .labelSelector(SERVER_TEMPLATE_IDENTIFIER_LABEL + "=" + serverTemplate.templateIdentifier())
-                .execute();
-
-            for (V1Pod item : podList.getItems()) {
-                if (item.getStatus() != null && item.getStatus().getPhase().equals("Running") || item.getStatus().getPhase().equals("Pending")) {
-                    serverInstances.add(new ServerInstance(rhenium, item));
+        for (ServerPodWatcher serverPodWatcher : serverPodWatchers) {
+            KubernetesCluster kubernetesCluster = serverPodWatcher.getKubernetesCluster();
+
+            for (V1Pod item : serverPodWatcher.getPods(serverTemplate.templateIdentifier())) {
+                if (item.getStatus() != null && ("Running".equals(item.getStatus().getPhase()) || "Pending".equals(item.getStatus().getPhase()))) {
+                    boolean probedReady = readinessProber.isReady(item.getMetadata().getName());
+                    // The pods of an unreachable cluster that don't answer are ignored, so that they are replaced in the other clusters
+                    if (!probedReady && !kubernetesCluster.isHealthy()) continue;
+
+                    serverInstances.add(new ServerInstance(kubernetesCluster, item, probedReady));
                 }
             }
-        } catch (ApiException exception) {
-            LOGGER.error("Failed to get the server instances for the server template {}.", serverTemplate.templateName(), exception);
-            // TODO: shouldn't we return the exception here so that the caller can handle it?
         }
 
         return serverInstances;
     }
 
     public ServerInstance getServerInstance(String serverId) {
-        try {
-            V1Pod pod = rhenium.getKubernetesClient().readNamespacedPod(serverId, rhenium.getRheniumConfig().getK8sNamespace()).execute();
-            if (pod == null) return null;
+        for (ServerPodWatcher serverPodWatcher : serverPodWatchers) {
+            V1Pod pod = serverPodWatcher.getPod(serverId);
+            if (pod != null) return new ServerInstance(serverPodWatcher.getKubernetesCluster(), pod, readinessProber.isReady(serverId));
+        }
 
-            return new ServerInstance(rhenium, pod);
-        } catch (ApiException exception) {
-            LOGGER.error("Failed to get the server instance {}.", serverId, exception);
-            return null;
+        return null;
+    }
+
+    private List<V1Pod> getPods() {
+        List<V1Pod> pods = new ArrayList<>();
+        for (ServerPodWatcher serverPodWatcher : serverPodWatchers) {
+            pods.addAll(serverPodWatcher.getPods());
         }
+
+        return pods;
+    }
+
+    /**
+     * @return the watcher of the cluster the server is in, or null if the pod of the server doesn't exist
+     */
+    private ServerPodWatcher getPodWatcher(String serverId) {
+        for (ServerPodWatcher serverPodWatcher : serverPodWatchers) {
+            if (serverPodWatcher.getPod(serverId) != null) return serverPodWatcher;
+        }
+
+        return null;
     }
 
     private void checkOutdatedServers() {
@@ -116,189 +315,169 @@ public class ServerManager {
             if (!serverInstance.isScheduledForDeletion()) {
                 // Check if the server template still exists
                 if (rhenium.getRheniumConfig().getTemplateByIdentifier(serverInstance.getServerTemplateIdentifier()) == null) {
-                    serverInstance.setScheduledForDeletion(true);
+                    setScheduledForDeletion(serverInstance, true);
                 }
             }
         }
     }
 
     /**
-     * This method will check if there are any servers that needs to be deleted.
+     * Deletes the pods that are not running once their logs are stored.
      */
-    private void deleteEmptyServers() {
-        for (ServerInstance serverInstance : getAllServerInstances()) {
-            if (serverInstance.isScheduledForDeletion() && serverInstance.getOnlinePlayers() == 0) {
-                stopServer(serverInstance.getServerId());
-            }
-        }
-
-        // Get all pods that are not running and delete them
-        try {
-            V1PodList podList = rhenium.getKubernetesClient()
-                .listNamespacedPod(rhenium.getRheniumConfig().getK8sNamespace())
-                .labelSelector("type=server-instance")
-                .execute();
-
-            for (V1Pod item : podList.getItems()) {
-                if (!item.getStatus().getPhase().equals("Running") && !item.getStatus().getPhase().equals("Pending")) {
-                    rhenium.getKubernetesClient().deleteNamespacedPod(item.getMetadata().getName(), rhenium.getRheniumConfig().getK8sNamespace()).execute();
-                    // TODO: store logs
-                }
+    private void deleteTerminatedPods(KubernetesCluster kubernetesCluster, List<V1Pod> pods) {
+        for (V1Pod item : pods) {
+            if (item.getStatus() == null) continue;
+
+            String phase = item.getStatus().getPhase();
+            if (!"Running".equals(phase) && !"Pending".equals(phase)) {
+                String podName = item.getMetadata().getName();
+                podLogArchiver.archive(kubernetesCluster, podName, () -> deleteTerminatedPod(kubernetesCluster, podName));
             }
-        } catch (ApiException exception) {
-            LOGGER.error("Failed to get the server instances running.", exception);
         }
     }
 
     /**
-     * This method will check if new servers are needed and schedule them if necessary.
+     * @return the amount of servers of the template that have been created but whose pod hasn't been seen yet
      */
-    private void checkNewNeededServers() {
-        for (ServerTemplate serverTemplate : rhenium.getRheniumConfig().getTemplates()) {
-            List<ServerInstance> serverInstances = getServerInstances(serverTemplate);
+    private int countPendingServers(ServerTemplate serverTemplate) {
+        long now = System.currentTimeMillis();
+        pendingServers.entrySet().removeIf(entry -> getPodWatcher(entry.getKey()) != null
+            || now - entry.getValue().creationTime() > PENDING_SERVER_TIMEOUT);
+
+        return (int) pendingServers.values().stream()
+            .filter(pendingServer -> pendingServer.templateIdentifier().equals(serverTemplate.templateIdentifier()))
+            .count();
+    }
 
-            int availableServers = (int) serverInstances.stream()
-                .filter(gameServer -> !gameServer.isScheduledForDeletion())
-                .filter(gameServer -> gameServer.getOnlinePlayers() < serverTemplate.maxPlayers())
-                .count();
+    /**
+     * Create a new server based on the server template.
+     *
+     * @param serverTemplate The server template to create the server from
+     */
+    private void createServer(ServerTemplate serverTemplate) {
+        ServerPodWatcher serverPodWatcher = selectCluster();
+        if (serverPodWatcher == null) {
+            LOGGER.warn("Failed to create a new server of {}, every cluster is full or unhealthy.", serverTemplate.templateName());
+            return;
+        }
 
-            while (availableServers < MIN_SERVERS) {
-                // Before scheduling a server, try to check if a server that is scheduled for stopping can be started again
-                // This is done to avoid having to start a new server if we can reuse an old one
-
-                boolean found = false;
-                for (ServerInstance serverInstance : serverInstances) {
-                    if (serverInstance.isScheduledForDeletion()) {
-                        serverInstance.setScheduledForDeletion(false);
-                        availableServers++;
-                        found = true;
-                        break;
-                    }
-                }
+        KubernetesCluster kubernetesCluster = serverPodWatcher.getKubernetesCluster();
+        String serverId = serverTemplate.templateName() + "-" + Utils.generateUniqueNetworkId(8);
 
-                if (!found) {
-                    createServer(serverTemplate);
-                    availableServers++;
+        String namespace = kubernetesCluster.getNamespace();
+        V1Pod pod = serverPodFactory.createPod(serverTemplate, serverId, namespace);
+        pendingServers.put(serverId, new PendingServer(serverTemplate.templateIdentifier(), kubernetesCluster.getName(), System.currentTimeMillis()));
+
+        kubernetesCluster.getGateway().<V1Pod>submit(RequestPriority.RECONCILE, (api, callback) -> api.createNamespacedPod(namespace, pod).executeAsync(callback))
+            .whenComplete((createdPod, throwable) -> {
+                // The gateway retries the call when the response is lost, the pod may already have been created by a previous attempt
+                if (throwable instanceof ApiException exception && exception.getCode() == 409) {
+                    LOGGER.info("Created a new server {} in the cluster {} (a retry found it already created).", serverId, kubernetesCluster.getName());
+                } else if (throwable != null) {
+                    LOGGER.error("Failed to create a new server {} in the cluster {}.", serverId, kubernetesCluster.getName(), throwable);
+                    pendingServers.remove(serverId);
+                    requestReconcile(serverTemplate);
+                } else {
+                    LOGGER.info("Created a new server {} in the cluster {}.", serverId, kubernetesCluster.getName());
                 }
-            }
-        }
+            });
     }
 
     /**
-     * This method will flag servers for deletion if there are too many servers running compared to the demand.
+     * Chooses the cluster of a new server. The healthy clusters that aren't full are filled according to their weight,
+     * so the servers go to the next cluster when one is full or unhealthy.
+     *
+     * @return the watcher of the chosen cluster, or null if no cluster can accept a new server
      */
-    private void downscaleServers() {
-        for (ServerTemplate serverTemplate : rhenium.getRheniumConfig().getTemplates()) {
-            List<ServerInstance> serverInstances = getServerInstances(serverTemplate);
+    private ServerPodWatcher selectCluster() {
+        ServerPodWatcher selectedWatcher = null;
+        double lowestLoad = Double.MAX_VALUE;
 
-            int runningServers = 0;
-            int connectedPlayers = 0;
-            for (ServerInstance serverInstance : serverInstances) {
-                if (serverInstance.isScheduledForDeletion()) continue;
+        for (ServerPodWatcher serverPodWatcher : serverPodWatchers) {
+            KubernetesCluster kubernetesCluster = serverPodWatcher.getKubernetesCluster();
+            if (!kubernetesCluster.isHealthy()) continue;
 
-                runningServers++;
-                connectedPlayers += serverInstance.getOnlinePlayers();
-            }
+            int pods = (int) serverPodWatcher.getPods().stream()
+                .filter(pod -> pod.getStatus() == null || "Running".equals(pod.getStatus().getPhase()) || "Pending".equals(pod.getStatus().getPhase()))
+                .count();
+            pods += (int) pendingServers.values().stream()
+                .filter(pendingServer -> pendingServer.clusterName().equals(kubernetesCluster.getName()))
+                .count();
+            if (kubernetesCluster.getMaxPods() > 0 && pods >= kubernetesCluster.getMaxPods()) continue;
 
-            int serversNeeded = (int) Math.ceil((double) connectedPlayers / serverTemplate.maxPlayers()) + MIN_SERVERS;
-            if (runningServers > serversNeeded) {
-                // We have too many servers!
-                int serversToRemove = runningServers - serversNeeded;
-
-                // Find the servers with the least amount of players and flag them for deletion
-                while (serversToRemove > 0) {
-                    ServerInstance serverToRemove = null;
-                    int minPlayers = Integer.MAX_VALUE;
-                    for (ServerInstance serverInstance : serverInstances) {
-                        if (serverInstance.isScheduledForDeletion()) continue;
-
-                        if (serverInstance.getOnlinePlayers() < minPlayers) {
-                            minPlayers = serverInstance.getOnlinePlayers();
-                            serverToRemove = serverInstance;
-                        }
-                    }
-
-                    if (serverToRemove != null) {
-                        serverToRemove.setScheduledForDeletion(true);
-                        serversToRemove--;
-                        LOGGER.info("Too many servers running! Flagged the server {} for deletion.", serverToRemove.getServerId());
-                    }
-                }
+            double load = (double) (pods + 1) / kubernetesCluster.getWeight();
+            if (load < lowestLoad) {
+                selectedWatcher = serverPodWatcher;
+                lowestLoad = load;
             }
         }
-    }
 
-    /**
-     * Create a new server based on the server template.
-     *
-     * @param serverTemplate The server template to create the server from
-     */
-    private void createServer(ServerTemplate serverTemplate) {
-        String serverId = serverTemplate.templateName() + "-" + Utils.generateUniqueNetworkId(8);
+        return selectedWatcher;
+    }
 
-        V1Pod pod = new V1Pod()
-            .apiVersion("v1")
-            .kind("Pod")
-            .metadata(new V1ObjectMeta().name(serverId)
-                .putLabelsItem("type", "server-instance")
-                .putLabelsItem(SERVER_TEMPLATE_IDENTIFIER_LABEL, serverTemplate.templateIdentifier())
-                .putAnnotationsItem(ServerInstance.ONLINE_PLAYERS_ANNOTATION, "0")
-                .putAnnotationsItem(ServerInstance.SCHEDULED_FOR_DELETION_ANNOTATION, "false")
-                .putAnnotationsItem(ServerInstance.MINI_GAME_INSTANCES_ANNOTATION, Base64.getEncoder().encodeToString("{}".getBytes()))
-            )
-            .spec(new V1PodSpec()
-                .overhead(null) // Necessary else it will throw an error
-                .restartPolicy("Never")
-                .containers(List.of(new V1Container()
-                        .name("minigame")
-                        .image("registry.defade.net/" + serverTemplate.dockerImage())
-                        .imagePullPolicy("Always")
-                        .ports(Collections.singletonList(new V1ContainerPort().containerPort(25565)))
-                        .env(List.of(
-                            secretKeySelector("REST_AUTH_KEY"),
-                            secretKeySelector("PROXY_FORWARDING_KEY"),
-                            secretKeySelector("PROXY_COOKIE_SIGNING_KEY"),
-                            new V1EnvVar().name("KUBERNETES_NAMESPACE").value(rhenium.getRheniumConfig().getK8sNamespace()),
-                            new V1EnvVar().name("SERVER_ID").value(serverId),
-                            secretKeySelector("MONGO_CONNECTION_STRING"),
-                            secretKeySelector("MONGO_DATABASE")
-                        ))
-                        .resources(new V1ResourceRequirements()
-                            .requests(Map.of("cpu", new Quantity(String.valueOf(serverTemplate.cpus())), "memory", new Quantity(serverTemplate.memory() + "Mi")))
-                        )
-                    )
-                )
-                .imagePullSecrets(List.of(new V1LocalObjectReference().name(rhenium.getRheniumConfig().getDockerRegistrySecretName())))
-            );
+    private void setScheduledForDeletion(ServerInstance serverInstance, boolean scheduledForDeletion) {
+        if (!serverInstance.setScheduledForDeletion(scheduledForDeletion)) return;
 
-        try {
-            rhenium.getKubernetesClient().createNamespacedPod(rhenium.getRheniumConfig().getK8sNamespace(), pod).execute();
-        } catch (ApiException exception) {
-            LOGGER.error("Failed to create a new server {}.", serverId, exception);
-            return;
-        }
-        LOGGER.info("Created a new server {}.", serverId);
+        // Notify the server that it's scheduled for stop, or that it has been reused and should accept players again
+        // Both go through the same ordered queue, so a reused server always receives the cancellation last
+        String path = scheduledForDeletion ? "/server/schedule-stop" : "/server/cancel-stop";
+        notifyServer(serverInstance.getServerId(), serverInstance.getServerIp(), path).exceptionally(throwable -> {
+            LOGGER.error("Failed to notify server {} of {}.", serverInstance.getServerId(), path, throwable);
+            return null;
+        });
     }
 
+    /**
+     * Notifies the server that it should stop, then deletes its pod. The pod is deleted even if the notification failed.
+     */
     private void stopServer(String serverId) {
-        try {
-            rhenium.getKubernetesClient().deleteNamespacedPod(serverId, rhenium.getRheniumConfig().getK8sNamespace()).execute();
-            LOGGER.info("Deleted the server {}.", serverId);
-
-            Utils.sendHTTPRequest(
-                "http://" + Utils.getServerInstanceIp(rhenium.getKubernetesClient(), rhenium.getRheniumConfig().getK8sNamespace(), serverId) + "/server/stop",
-                "POST",
-                ""
-            ).exceptionally(throwable -> {
-                LOGGER.error("Failed to notify the server {} that it should stop.", serverId, throwable);
+        ServerPodWatcher serverPodWatcher = getPodWatcher(serverId);
+        if (serverPodWatcher == null) return; // Already deleted
+        if (!stoppingServers.add(serverId)) return;
+
+        V1Pod pod = serverPodWatcher.getPod(serverId);
+        String serverIp = pod != null && pod.getStatus() != null ? pod.getStatus().getPodIP() : null;
+
+        notifyServer(serverId, serverIp, "/server/stop")
+            .handle((result, throwable) -> {
+                if (throwable != null) LOGGER.error("Failed to notify the server {} that it should stop.", serverId, throwable);
                 return null;
+            })
+            .thenCompose(ignored -> deletePod(serverPodWatcher.getKubernetesCluster(), RequestPriority.RECONCILE, serverId))
+            .whenComplete((deletedPod, throwable) -> {
+                stoppingServers.remove(serverId);
+                if (throwable != null) {
+                    LOGGER.error("Failed to delete the server {}.", serverId, throwable);
+                } else {
+                    LOGGER.info("Deleted the server {}.", serverId);
+                }
             });
-        } catch (ApiException exception) {
-            LOGGER.error("Failed to delete the server {}.", serverId, exception);
+    }
+
+    /**
+     * Sends a notification to a server, after the previous notifications sent to the same server.
+     */
+    private CompletableFuture<Void> notifyServer(String serverId, String serverIp, String path) {
+        if (serverIp == null) {
+            return CompletableFuture.failedFuture(new IOException("The IP of the server " + serverId + " is unknown"));
         }
+
+        return rhenium.getNotificationPipeline().send("server:" + serverId, "POST " + path, SERVER_NOTIFICATION_DEADLINE,
+            idempotencyKey -> Utils.sendHTTPRequest("http://" + serverIp + path, "POST", "", Map.of(Utils.IDEMPOTENCY_KEY_HEADER, idempotencyKey), ForkJoinPool.commonPool()));
     }
 
-    private static V1EnvVar secretKeySelector(String key) {
-        return new V1EnvVar().name(key).valueFrom(new V1EnvVarSource().secretKeyRef(new V1SecretKeySelector().name("db-credentials").key(key)));
+    private void deleteTerminatedPod(KubernetesCluster kubernetesCluster, String podName) {
+        deletePod(kubernetesCluster, RequestPriority.BULK, podName).exceptionally(throwable -> {
+            LOGGER.error("Failed to delete the terminated pod {}, retrying on the next reconciliation.", podName, throwable);
+            podLogArchiver.actionFailed(podName);
+            return null;
+        });
+    }
+
+    private CompletableFuture<V1Pod> deletePod(KubernetesCluster kubernetesCluster, RequestPriority priority, String podName) {
+        String namespace = kubernetesCluster.getNamespace();
+        return kubernetesCluster.getGateway().submit(priority, (api, callback) -> api.deleteNamespacedPod(podName, namespace).executeAsync(callback));
     }
+
+    private record PendingServer(String templateIdentifier, String clusterName, long creationTime) { }
 }
@@ -0,0 +1,203 @@
+package net.defade.rhenium.servers;
+
+import io.kubernetes.client.custom.Quantity;
+import io.kubernetes.client.openapi.models.V1Affinity;
+import io.kubernetes.client.openapi.models.V1Container;
+import io.kubernetes.client.openapi.models.V1ContainerPort;
+import io.kubernetes.client.openapi.models.V1EnvVar;
+import io.kubernetes.client.openapi.models.V1EnvVarSource;
+import io.kubernetes.client.openapi.models.V1LabelSelector;
+import io.kubernetes.client.openapi.models.V1LocalObjectReference;
+import io.kubernetes.client.openapi.models.V1ObjectMeta;
+import io.kubernetes.client.openapi.models.V1Pod;
+import io.kubernetes.client.openapi.models.V1PodAffinityTerm;
+import io.kubernetes.client.openapi.models.V1PodAntiAffinity;
+import io.kubernetes.client.openapi.models.V1PodSpec;
+import io.kubernetes.client.openapi.models.V1ResourceRequirements;
+import io.kubernetes.client.openapi.models.V1SecretKeySelector;
+import io.kubernetes.client.openapi.models.V1Toleration;
+import io.kubernetes.client.openapi.models.V1TopologySpreadConstraint;
+import io.kubernetes.client.openapi.models.V1WeightedPodAffinityTerm;
+import net.defade.rhenium.Rhenium;
+import net.defade.rhenium.config.PodScheduling;
+import net.defade.rhenium.config.ServerTemplate;
+import net.defade.rhenium.servers.instances.ServerInstance;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static net.defade.rhenium.servers.instances.ServerInstance.SERVER_TEMPLATE_IDENTIFIER_LABEL;
+
+/**
+ * Builds the pods of the server instances.
+ * The parts of the pod that only depend on the server template are built once and shared between all the pods
+ * of the template, only the metadata and the server id are generated for each pod.
+ */
+public class ServerPodFactory {
+    public static final String CONTAINER_NAME = "minigame";
+
+    private static final String HOSTNAME_TOPOLOGY_KEY = "kubernetes.io/hostname";
+    private static final String EMPTY_MINI_GAME_INSTANCES = Base64.getEncoder().encodeToString("{}".getBytes());
+
+    private final Rhenium rhenium;
+    private final Map<String, TemplatePodSpec> templatePodSpecs = new ConcurrentHashMap<>();
+
+    public ServerPodFactory(Rhenium rhenium) {
+        this.rhenium = rhenium;
+    }
+
+    /**
+     * @param namespace the namespace the pod is created in
+     */
+    public V1Pod createPod(ServerTemplate serverTemplate, String serverId, String namespace) {
+        TemplatePodSpec templatePodSpec = getTemplatePodSpec(serverTemplate);
+
+        List<V1EnvVar> env = new ArrayList<>(templatePodSpec.env().size() + 2);
+        env.addAll(templatePodSpec.env());
+        env.add(new V1EnvVar().name("KUBERNETES_NAMESPACE").value(namespace));
+        env.add(new V1EnvVar().name("SERVER_ID").value(serverId));
+
+        return new V1Pod()
+            .apiVersion("v1")
+            .kind("Pod")
+            .metadata(new V1ObjectMeta().name(serverId)
+                .putLabelsItem("type", "server-instance")
+                .putLabelsItem(SERVER_TEMPLATE_IDENTIFIER_LABEL, serverTemplate.templateIdentifier())
+                .putAnnotationsItem(ServerInstance.ONLINE_PLAYERS_ANNOTATION, "0")
+                .putAnnotationsItem(ServerInstance.SCHEDULED_FOR_DELETION_ANNOTATION, "false")
+                .putAnnotationsItem(ServerInstance.MINI_GAME_INSTANCES_ANNOTATION, EMPTY_MINI_GAME_INSTANCES)
+            )
+            .spec(new V1PodSpec()
+                .overhead(null) // Necessary else it will throw an error
+                .restartPolicy("Never")
+                .containers(List.of(new V1Container()
+                    .name(CONTAINER_NAME)
+                    .image(templatePodSpec.image())
+                    .imagePullPolicy("Always")
+                    .ports(templatePodSpec.ports())
+                    .env(env)
+                    .resources(templatePodSpec.resources())
+                ))
+                .imagePullSecrets(templatePodSpec.imagePullSecrets())
+                .priorityClassName(templatePodSpec.priorityClassName())
+                .affinity(templatePodSpec.affinity())
+                .topologySpreadConstraints(templatePodSpec.topologySpreadConstraints())
+                .nodeSelector(templatePodSpec.nodeSelector())
+                .tolerations(templatePodSpec.tolerations())
+            );
+    }
+
+    /**
+     * Forgets the pod specs of the templates that have been removed from the configuration.
+     */
+    public void retainTemplates(Set<String> templateIdentifiers) {
+        templatePodSpecs.keySet().retainAll(templateIdentifiers);
+    }
+
+    private TemplatePodSpec getTemplatePodSpec(ServerTemplate serverTemplate) {
+        // The template is part of the cached value so that a modified template doesn't reuse an outdated spec
+        return templatePodSpecs.compute(serverTemplate.templateIdentifier(), (identifier, cached) ->
+            cached != null && cached.serverTemplate().equals(serverTemplate) ? cached : buildTemplatePodSpec(serverTemplate));
+    }
+
+    private TemplatePodSpec buildTemplatePodSpec(ServerTemplate serverTemplate) {
+        PodScheduling podScheduling = serverTemplate.podScheduling();
+
+        List<V1EnvVar> env = List.of(
+            secretKeySelector("REST_AUTH_KEY"),
+            secretKeySelector("PROXY_FORWARDING_KEY"),
+            secretKeySelector("PROXY_COOKIE_SIGNING_KEY"),
+            secretKeySelector("MONGO_CONNECTION_STRING"),
+            secretKeySelector("MONGO_DATABASE")
+        );
+
+        return new TemplatePodSpec(
+            serverTemplate,
+            "registry.defade.net/" + serverTemplate.dockerImage(),
+            Collections.singletonList(new V1ContainerPort().containerPort(25565)),
+            env,
+            buildResources(serverTemplate),
+            List.of(new V1LocalObjectReference().name(rhenium.getRheniumConfig().getDockerRegistrySecretName())),
+            podScheduling.priorityClassName(),
+            buildAffinity(serverTemplate),
+            buildTopologySpreadConstraints(serverTemplate),
+            podScheduling.nodeSelector().isEmpty() ? null : podScheduling.nodeSelector(),
+            podScheduling.tolerations().isEmpty() ? null : podScheduling.tolerations().stream()
+                .map(toleration -> new V1Toleration()
+                    .key(toleration.key())
+                    .operator(toleration.operator())
+                    .value(toleration.value())
+                    .effect(toleration.effect()))
+                .toList()
+        );
+    }
+
+    private static V1ResourceRequirements buildResources(ServerTemplate serverTemplate) {
+        PodScheduling podScheduling = serverTemplate.podScheduling();
+        Quantity cpuRequest = new Quantity(String.valueOf(serverTemplate.cpus()));
+        Quantity memoryRequest = new Quantity(serverTemplate.memory() + "Mi");
+
+        V1ResourceRequirements resources = new V1ResourceRequirements()
+            .requests(Map.of("cpu", cpuRequest, "memory", memoryRequest));
+
+        if (podScheduling.guaranteed()) {
+            // Limits equal to the requests for every resource is what gives a pod the Guaranteed QoS class
+            resources.limits(Map.of("cpu", cpuRequest, "memory", memoryRequest));
+        } else if (podScheduling.cpuLimit() > 0 || podScheduling.memoryLimit() > 0) {
+            Map<String, Quantity> limits = new HashMap<>();
+            if (podScheduling.cpuLimit() > 0) limits.put("cpu", new Quantity(String.valueOf(podScheduling.cpuLimit())));
+            if (podScheduling.memoryLimit() > 0) limits.put("memory", new Quantity(podScheduling.memoryLimit() + "Mi"));
+            resources.limits(Map.copyOf(limits));
+        }
+
+        return resources;
+    }
+
+    private static V1Affinity buildAffinity(ServerTemplate serverTemplate) {
+        V1PodAffinityTerm affinityTerm = new V1PodAffinityTerm()
+            .labelSelector(templateLabelSelector(serverTemplate))
+            .topologyKey(HOSTNAME_TOPOLOGY_KEY);
+
+        return switch (serverTemplate.podScheduling().antiAffinity()) {
+            case NONE -> null;
+            case PREFERRED -> new V1Affinity().podAntiAffinity(new V1PodAntiAffinity()
+                .preferredDuringSchedulingIgnoredDuringExecution(List.of(new V1WeightedPodAffinityTerm().weight(100).podAffinityTerm(affinityTerm))));
+            case REQUIRED -> new V1Affinity().podAntiAffinity(new V1PodAntiAffinity()
+                .requiredDuringSchedulingIgnoredDuringExecution(List.of(affinityTerm)));
+        };
+    }
+
+    private static List<V1TopologySpreadConstraint> buildTopologySpreadConstraints(ServerTemplate serverTemplate) {
+        PodScheduling podScheduling = serverTemplate.podScheduling();
+        if (podScheduling.topologySpreadKey() == null) return null;
+
+        return List.of(new V1TopologySpreadConstraint()
+            .maxSkew(podScheduling.maxSkew())
+            .topologyKey(podScheduling.topologySpreadKey())
+            .whenUnsatisfiable("ScheduleAnyway")
+            .labelSelector(templateLabelSelector(serverTemplate)));
+    }
+
+    private static V1LabelSelector templateLabelSelector(ServerTemplate serverTemplate) {
+        return new V1LabelSelector().matchLabels(Map.of(SERVER_TEMPLATE_IDENTIFIER_LABEL, serverTemplate.templateIdentifier()));
+    }
+
+    private static V1EnvVar secretKeySelector(String key) {
+        return new V1EnvVar().name(key).valueFrom(new V1EnvVarSource().secretKeyRef(new V1SecretKeySelector().name("db-credentials").key(key)));
+    }
+
+    /**
+     * The parts of a pod that are shared between all the pods of a server template.
+     * Those objects are never modified once built.
+     */
+    private record TemplatePodSpec(ServerTemplate serverTemplate, String image, List<V1ContainerPort> ports, List<V1EnvVar> env,
+                                   V1ResourceRequirements resources, List<V1LocalObjectReference> imagePullSecrets,
+                                   String priorityClassName, V1Affinity affinity,
+                                   List<V1TopologySpreadConstraint> topologySpreadConstraints,
+                                   Map<String, String> nodeSelector, List<V1Toleration> tolerations) { }
+}
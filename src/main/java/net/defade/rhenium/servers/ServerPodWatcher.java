@@ -0,0 +1,141 @@
+package net.defade.rhenium.servers;
+
+import io.kubernetes.client.informer.ResourceEventHandler;
+import io.kubernetes.client.informer.SharedIndexInformer;
+import io.kubernetes.client.informer.SharedInformerFactory;
+import io.kubernetes.client.openapi.ApiClient;
+import io.kubernetes.client.openapi.apis.CoreV1Api;
+import io.kubernetes.client.openapi.models.V1Pod;
+import io.kubernetes.client.openapi.models.V1PodList;
+import io.kubernetes.client.util.CallGeneratorParams;
+import net.defade.rhenium.kubernetes.KubernetesCluster;
+import net.defade.rhenium.servers.instances.ServerInstance;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static net.defade.rhenium.servers.instances.ServerInstance.SERVER_TEMPLATE_IDENTIFIER_LABEL;
+
+/**
+ * Watches the pods of the server instances of a cluster.
+ * It keeps an up-to-date copy of the pods, so that they don't have to be listed from the Kubernetes API each time
+ * they are needed, and notifies when the pods of a template have changed.
+ */
+public class ServerPodWatcher {
+    private static final Logger LOGGER = LogManager.getLogger(ServerPodWatcher.class);
+    private static final String TEMPLATE_INDEX = "template";
+    private static final long SYNC_TIMEOUT = 30 * 1000;
+
+    private final KubernetesCluster kubernetesCluster;
+    private final String namespace;
+    private final SharedInformerFactory informerFactory;
+    private final SharedIndexInformer<V1Pod> podInformer;
+
+    /**
+     * @param templateChangeListener called with the template identifier when a pod of the template is added,
+     *                               deleted, or when its phase, readiness or annotations changed
+     */
+    public ServerPodWatcher(KubernetesCluster kubernetesCluster, Consumer<String> templateChangeListener) throws IOException {
+        this.kubernetesCluster = kubernetesCluster;
+        this.namespace = kubernetesCluster.getNamespace();
+
+        // Watches are long-lived connections, they need a client without read timeout
+        // They don't go through the KubernetesGateway, a watch would hold one of its in-flight slots for as long as it is open.
+        // The informer already has its own backoff when the watch fails, and it only lists the pods again when it has to.
+        ApiClient apiClient = kubernetesCluster.createApiClient();
+        apiClient.setHttpClient(apiClient.getHttpClient().newBuilder().readTimeout(0, TimeUnit.SECONDS).build());
+        CoreV1Api api = new CoreV1Api(apiClient);
+
+        this.informerFactory = new SharedInformerFactory(apiClient);
+        this.podInformer = informerFactory.sharedIndexInformerFor(
+            (CallGeneratorParams params) -> api.listNamespacedPod(namespace)
+                .labelSelector("type=server-instance")
+                .resourceVersion(params.resourceVersion)
+                .timeoutSeconds(params.timeoutSeconds)
+                .watch(params.watch)
+                .buildCall(null),
+            V1Pod.class,
+            V1PodList.class
+        );
+
+        podInformer.addIndexers(Map.of(TEMPLATE_INDEX, pod -> List.of(getTemplateIdentifier(pod))));
+        podInformer.addEventHandler(new ResourceEventHandler<>() {
+            @Override
+            public void onAdd(V1Pod pod) {
+                templateChangeListener.accept(getTemplateIdentifier(pod));
+            }
+
+            @Override
+            public void onUpdate(V1Pod oldPod, V1Pod newPod) {
+                if (hasChanged(oldPod, newPod)) templateChangeListener.accept(getTemplateIdentifier(newPod));
+            }
+
+            @Override
+            public void onDelete(V1Pod pod, boolean deletedFinalStateUnknown) {
+                templateChangeListener.accept(getTemplateIdentifier(pod));
+            }
+        });
+    }
+
+    /**
+     * Starts watching the pods and waits for the initial list of pods to be received.
+     */
+    public void start() {
+        informerFactory.startAllRegisteredInformers();
+
+        long start = System.currentTimeMillis();
+        while (!podInformer.hasSynced()) {
+            if (System.currentTimeMillis() - start > SYNC_TIMEOUT) {
+                LOGGER.warn("The server pods of the cluster {} haven't been synced after {}ms, starting anyway.", kubernetesCluster.getName(), SYNC_TIMEOUT);
+                return;
+            }
+
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    public void stop() {
+        informerFactory.stopAllRegisteredInformers();
+    }
+
+    public KubernetesCluster getKubernetesCluster() {
+        return kubernetesCluster;
+    }
+
+    public List<V1Pod> getPods() {
+        return podInformer.getIndexer().list();
+    }
+
+    public List<V1Pod> getPods(String templateIdentifier) {
+        return podInformer.getIndexer().byIndex(TEMPLATE_INDEX, templateIdentifier);
+    }
+
+    public V1Pod getPod(String podName) {
+        return podInformer.getIndexer().getByKey(namespace + "/" + podName);
+    }
+
+    private static boolean hasChanged(V1Pod oldPod, V1Pod newPod) {
+        String oldPhase = oldPod.getStatus() != null ? oldPod.getStatus().getPhase() : null;
+        String newPhase = newPod.getStatus() != null ? newPod.getStatus().getPhase() : null;
+
+        return !Objects.equals(oldPhase, newPhase)
+            || ServerInstance.hasReadyCondition(oldPod) != ServerInstance.hasReadyCondition(newPod)
+            || !Objects.equals(oldPod.getMetadata().getAnnotations(), newPod.getMetadata().getAnnotations())
+            || !Objects.equals(oldPod.getMetadata().getDeletionTimestamp(), newPod.getMetadata().getDeletionTimestamp());
+    }
+
+    private static String getTemplateIdentifier(V1Pod pod) {
+        Map<String, String> labels = pod.getMetadata().getLabels();
+        return labels != null ? labels.getOrDefault(SERVER_TEMPLATE_IDENTIFIER_LABEL, "") : "";
+    }
+}
@@ -0,0 +1,142 @@
+package net.defade.rhenium.servers;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The bounded queue of the players waiting for a server of a template.
+ * Players are served by priority, then in the order they joined the queue.
+ */
+public class WaitQueue {
+    private final int capacity;
+    private final Map<QueuePriority, LinkedHashMap<String, Long>> requests = new EnumMap<>(QueuePriority.class); // Player UUID -> request time
+    private final Map<String, QueuePriority> playerPriorities = new HashMap<>();
+
+    public WaitQueue(int capacity) {
+        this.capacity = capacity;
+        for (QueuePriority priority : QueuePriority.values()) {
+            requests.put(priority, new LinkedHashMap<>());
+        }
+    }
+
+    /**
+     * Tries to add a player to the queue. If the queue is full, the most recent player with a lower priority is
+     * removed to make room, if there is none the player is refused.
+     * A player that is already in the queue is moved to the end of the queue.
+     */
+    public synchronized Admission offer(String playerUUID, QueuePriority priority, long time) {
+        remove(playerUUID);
+
+        String evictedPlayer = null;
+        if (playerPriorities.size() >= capacity) {
+            evictedPlayer = evictLowerPriority(priority);
+            if (evictedPlayer == null) return new Admission(false, playerPriorities.size(), null);
+        }
+
+        requests.get(priority).put(playerUUID, time);
+        playerPriorities.put(playerUUID, priority);
+
+        return new Admission(true, getPosition(playerUUID), evictedPlayer);
+    }
+
+    public synchronized boolean remove(String playerUUID) {
+        QueuePriority priority = playerPriorities.remove(playerUUID);
+        if (priority == null) return false;
+
+        requests.get(priority).remove(playerUUID);
+        return true;
+    }
+
+    /**
+     * Removes the next player to serve from the queue.
+     *
+     * @return the player UUID, or null if the queue is empty
+     */
+    public synchronized String poll() {
+        for (LinkedHashMap<String, Long> priorityRequests : requests.values()) {
+            Map.Entry<String, Long> entry = priorityRequests.pollFirstEntry();
+            if (entry != null) {
+                playerPriorities.remove(entry.getKey());
+                return entry.getKey();
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Removes the players that waited for longer than the maximum wait time.
+     *
+     * @return the removed players
+     */
+    public synchronized List<String> removeExpired(long now, long maxWaitTime) {
+        List<String> expiredPlayers = new ArrayList<>();
+
+        for (LinkedHashMap<String, Long> priorityRequests : requests.values()) {
+            priorityRequests.entrySet().removeIf(entry -> {
+                if (now - entry.getValue() <= maxWaitTime) return false;
+
+                expiredPlayers.add(entry.getKey());
+                playerPriorities.remove(entry.getKey());
+                return true;
+            });
+        }
+
+        return expiredPlayers;
+    }
+
+    /**
+     * @return the position of the player in the queue starting at 1, or 0 if the player isn't in the queue
+     */
+    public synchronized int getPosition(String playerUUID) {
+        QueuePriority playerPriority = playerPriorities.get(playerUUID);
+        if (playerPriority == null) return 0;
+
+        int position = 1;
+        for (Map.Entry<QueuePriority, LinkedHashMap<String, Long>> entry : requests.entrySet()) {
+            if (entry.getKey() != playerPriority) {
+                position += entry.getValue().size();
+                continue;
+            }
+
+            for (String queuedPlayer : entry.getValue().keySet()) {
+                if (queuedPlayer.equals(playerUUID)) return position;
+                position++;
+            }
+        }
+
+        return position;
+    }
+
+    public synchronized int size() {
+        return playerPriorities.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    private String evictLowerPriority(QueuePriority priority) {
+        QueuePriority[] priorities = QueuePriority.values();
+        for (int i = priorities.length - 1; i > priority.ordinal(); i--) {
+            Map.Entry<String, Long> evicted = requests.get(priorities[i]).pollLastEntry();
+            if (evicted != null) {
+                playerPriorities.remove(evicted.getKey());
+                return evicted.getKey();
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @param accepted if the player has been added to the queue
+     * @param position the position of the player if accepted, else the size of the queue
+     * @param evictedPlayer the player removed from the queue to make room, if any
+     */
+    public record Admission(boolean accepted, int position, String evictedPlayer) { }
+}
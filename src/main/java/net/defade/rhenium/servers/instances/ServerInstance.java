@@ -3,10 +3,10 @@ package net.defade.rhenium.servers.instances;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import io.kubernetes.client.custom.V1Patch;
-import io.kubernetes.client.openapi.ApiException;
 import io.kubernetes.client.openapi.models.V1Pod;
-import net.defade.rhenium.Rhenium;
-import net.defade.rhenium.utils.Utils;
+import net.defade.rhenium.kubernetes.KubernetesCluster;
+import net.defade.rhenium.kubernetes.RequestPriority;
+import net.defade.rhenium.profiling.ServerInstanceDecodeEvent;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import java.util.Base64;
@@ -22,39 +22,73 @@ public class ServerInstance {
 
     private static final Logger LOGGER = LogManager.getLogger(ServerInstance.class);
 
-    private final Rhenium rhenium;
+    private final KubernetesCluster kubernetesCluster;
 
     private final String serverId;
     private final String serverTemplateIdentifier;
+    private final String serverIp;
     private final Map<UUID, MiniGameInstance> miniGameInstances;
     private final int onlinePlayers;
+    private final long creationTime;
+    private final boolean isReady;
+    private final boolean isTerminating;
     private boolean isScheduledForDeletion; // Used for downscaling
 
-    public ServerInstance(Rhenium rhenium, V1Pod pod) {
-        this.rhenium = rhenium;
+    /**
+     * @param kubernetesCluster the cluster the pod is running in
+     * @param probedReady if the last readiness probe of the server succeeded
+     */
+    public ServerInstance(KubernetesCluster kubernetesCluster, V1Pod pod, boolean probedReady) {
+        this.kubernetesCluster = kubernetesCluster;
+
+        String phase = pod.getStatus() != null ? pod.getStatus().getPhase() : null;
+        this.isTerminating = pod.getMetadata().getDeletionTimestamp() != null || !("Pending".equals(phase) || "Running".equals(phase));
+        this.isReady = "Running".equals(phase) && probedReady && hasReadyCondition(pod);
 
         this.serverId = pod.getMetadata().getName();
         this.serverTemplateIdentifier = pod.getMetadata().getLabels().get(SERVER_TEMPLATE_IDENTIFIER_LABEL);
+        this.serverIp = pod.getStatus() != null ? pod.getStatus().getPodIP() : null;
         this.onlinePlayers = Integer.parseInt(pod.getMetadata().getAnnotations().get(ONLINE_PLAYERS_ANNOTATION));
+        this.creationTime = pod.getMetadata().getCreationTimestamp() != null ? pod.getMetadata().getCreationTimestamp().toInstant().toEpochMilli() : 0;
         this.miniGameInstances = new HashMap<>();
         this.isScheduledForDeletion = Boolean.parseBoolean(pod.getMetadata().getAnnotations().get(SCHEDULED_FOR_DELETION_ANNOTATION));
 
+        ServerInstanceDecodeEvent event = new ServerInstanceDecodeEvent();
+        event.begin();
+
         String miniGameInstancesJson = new String(Base64.getDecoder().decode(pod.getMetadata().getAnnotations().get(MINI_GAME_INSTANCES_ANNOTATION)));
         JsonObject miniGameInstancesJsonObject = JsonParser.parseString(miniGameInstancesJson).getAsJsonObject();
         for (String miniGameInstanceId : miniGameInstancesJsonObject.keySet()) {
             UUID miniGameInstanceUUID = UUID.fromString(miniGameInstanceId);
             miniGameInstances.put(miniGameInstanceUUID, new MiniGameInstance(serverId, miniGameInstanceUUID, miniGameInstancesJsonObject.getAsJsonObject(miniGameInstanceId)));
         }
+
+        if (event.shouldCommit()) {
+            event.serverId = serverId;
+            event.miniGameInstances = miniGameInstances.size();
+            event.commit();
+        }
     }
 
     public String getServerId() {
         return serverId;
     }
 
+    public KubernetesCluster getKubernetesCluster() {
+        return kubernetesCluster;
+    }
+
     public String getServerTemplateIdentifier() {
         return serverTemplateIdentifier;
     }
 
+    /**
+     * @return the IP of the pod, null if it hasn't been assigned yet
+     */
+    public String getServerIp() {
+        return serverIp;
+    }
+
     public Map<UUID, MiniGameInstance> getMiniGameInstances() {
         return miniGameInstances;
     }
@@ -63,32 +97,57 @@ public class ServerInstance {
         return onlinePlayers;
     }
 
+    /**
+     * @return the time at which the pod has been created in milliseconds, 0 if unknown
+     */
+    public long getCreationTime() {
+        return creationTime;
+    }
+
+    public ServerState getState() {
+        if (isTerminating) return ServerState.TERMINATING;
+        if (isScheduledForDeletion) return ServerState.DRAINING;
+        if (isReady) return ServerState.READY;
+        return ServerState.PROVISIONING;
+    }
+
     public boolean isScheduledForDeletion() {
         return isScheduledForDeletion;
     }
 
-    public void setScheduledForDeletion(boolean scheduledForDeletion) {
-        if (isScheduledForDeletion == scheduledForDeletion) return;
+    /**
+     * Updates the deletion flag of the server, the server itself has to be notified by the caller.
+     *
+     * @return if the flag changed
+     */
+    public boolean setScheduledForDeletion(boolean scheduledForDeletion) {
+        if (isScheduledForDeletion == scheduledForDeletion) return false;
         isScheduledForDeletion = scheduledForDeletion;
 
         // Update the annotation on the pod
-        rhenium.getKubernetesClient().patchNamespacedPod(serverId, rhenium.getRheniumConfig().getK8sNamespace(),
-            getAnnotationPatch(SCHEDULED_FOR_DELETION_ANNOTATION, String.valueOf(scheduledForDeletion)));
-
-        // Notify the server that it's scheduled for stop
-        try {
-            Utils.sendHTTPRequestToVelocity(rhenium, "http://" + Utils.getServerInstanceIp(rhenium.getKubernetesClient(),
-                rhenium.getRheniumConfig().getK8sNamespace(), serverId) + "/server/schedule-stop", "POST", "")
-                .exceptionally(throwable -> {
-                    LOGGER.error("Failed to notify server {} that it's scheduled for stop.", serverId, throwable);
-                    return null;
-                });
-        } catch (ApiException exception) {
-            LOGGER.error("Failed to notify server {} that it's scheduled for stop.", serverId, exception);
-        }
+        String namespace = kubernetesCluster.getNamespace();
+        V1Patch patch = getAnnotationPatch(SCHEDULED_FOR_DELETION_ANNOTATION, String.valueOf(scheduledForDeletion));
+        kubernetesCluster.getGateway().<V1Pod>submit(RequestPriority.RECONCILE, (api, callback) -> api.patchNamespacedPod(serverId, namespace, patch).executeAsync(callback))
+            .exceptionally(throwable -> {
+                LOGGER.error("Failed to update the deletion flag of the server {}.", serverId, throwable);
+                return null;
+            });
+
+        return true;
+    }
+
+    /**
+     * @return if Kubernetes considers the containers of the pod as ready
+     */
+    public static boolean hasReadyCondition(V1Pod pod) {
+        if (pod.getStatus() == null || pod.getStatus().getConditions() == null) return false;
+
+        return pod.getStatus().getConditions().stream()
+            .anyMatch(condition -> "Ready".equals(condition.getType()) && "True".equals(condition.getStatus()));
     }
 
     private static V1Patch getAnnotationPatch(String key, String value) {
-        return new V1Patch(String.format("{\"metadata\":{\"annotations\":{\"%s\":\"%s\"}}}", key, value));
+        // JSON patch is the default content type used by the client, "add" replaces the value if it already exists
+        return new V1Patch(String.format("[{\"op\":\"add\",\"path\":\"/metadata/annotations/%s\",\"value\":\"%s\"}]", key, value));
     }
 }
@@ -0,0 +1,24 @@
+package net.defade.rhenium.servers.instances;
+
+/**
+ * The lifecycle of a server: Provisioning -> Ready -> Draining -> Terminating.
+ * A draining server can go back to Ready if it's needed again.
+ */
+public enum ServerState {
+    /**
+     * The pod is being scheduled or started, or the server doesn't answer its readiness probe yet.
+     */
+    PROVISIONING,
+    /**
+     * The server can accept players.
+     */
+    READY,
+    /**
+     * The server is scheduled for deletion, it doesn't accept new players and will be stopped once empty.
+     */
+    DRAINING,
+    /**
+     * The pod is being deleted or has stopped.
+     */
+    TERMINATING
+}
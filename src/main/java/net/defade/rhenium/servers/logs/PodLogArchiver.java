@@ -0,0 +1,199 @@
+package net.defade.rhenium.servers.logs;
+
+import io.kubernetes.client.PodLogs;
+import io.kubernetes.client.openapi.ApiException;
+import net.defade.rhenium.Rhenium;
+import net.defade.rhenium.config.RheniumConfig;
+import net.defade.rhenium.kubernetes.KubernetesCluster;
+import net.defade.rhenium.servers.ServerPodFactory;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Stores the logs of the terminated server instances before their pods are deleted.
+ * The logs are captured on a bounded pool of threads so that the caller is never blocked.
+ */
+public class PodLogArchiver {
+    private static final Logger LOGGER = LogManager.getLogger(PodLogArchiver.class);
+    private static final String ARCHIVE_EXTENSION = ".log.gz";
+    private static final long HANDLED_POD_RETENTION = 5 * 60 * 1000; // Pods can still be listed for a while after their deletion
+    private static final long CAPTURING = Long.MAX_VALUE;
+
+    private final RheniumConfig rheniumConfig;
+    private final ThreadPoolExecutor executor;
+
+    // Pod name -> time at which the capture ended, used to not capture the logs of a pod twice
+    private final Map<String, Long> handledPods = new ConcurrentHashMap<>();
+    // Pod name -> time at which its deletion failed, its logs are already stored so only the action is run again
+    private final Map<String, Long> failedPods = new ConcurrentHashMap<>();
+
+    public PodLogArchiver(Rhenium rhenium) {
+        this.rheniumConfig = rhenium.getRheniumConfig();
+
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(
+            rheniumConfig.getLogArchiveThreads(), rheniumConfig.getLogArchiveThreads(),
+            0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(rheniumConfig.getLogArchiveQueueSize()),
+            runnable -> {
+                Thread thread = new Thread(runnable, "pod-log-archiver-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        );
+    }
+
+    /**
+     * Captures the logs of a terminated pod, then runs the given action once the capture is over or has timed out.
+     * Nothing is done if the logs of the pod are already being captured. If the archiver is overloaded, the capture
+     * is skipped and the action isn't run so that the caller can try again later.
+     *
+     * @param kubernetesCluster the cluster of the pod
+     * @param podName the name of the terminated pod
+     * @param afterCapture the action to run after the capture, usually the deletion of the pod
+     */
+    public void archive(KubernetesCluster kubernetesCluster, String podName, Runnable afterCapture) {
+        long now = System.currentTimeMillis();
+        handledPods.values().removeIf(endTime -> endTime != CAPTURING && now - endTime > HANDLED_POD_RETENTION);
+        failedPods.values().removeIf(failureTime -> now - failureTime > HANDLED_POD_RETENTION);
+        if (failedPods.remove(podName) != null) {
+            handledPods.put(podName, now);
+            afterCapture.run();
+            return;
+        }
+        if (handledPods.putIfAbsent(podName, CAPTURING) != null) return;
+
+        long deadline = now + rheniumConfig.getLogArchiveTimeout() * 1000L;
+        AtomicReference<InputStream> logStream = new AtomicReference<>();
+        CompletableFuture<Void> capture = new CompletableFuture<>();
+
+        try {
+            executor.execute(() -> {
+                try {
+                    capture(kubernetesCluster, podName, deadline, logStream);
+                    capture.complete(null);
+                } catch (Exception exception) {
+                    capture.completeExceptionally(exception);
+                } finally {
+                    handledPods.put(podName, System.currentTimeMillis());
+                }
+            });
+        } catch (RejectedExecutionException exception) {
+            handledPods.remove(podName);
+            LOGGER.warn("Too many pod logs are being captured, the logs of {} will be captured later.", podName);
+            return;
+        }
+
+        capture.orTimeout(deadline - now, TimeUnit.MILLISECONDS).whenComplete((result, throwable) -> {
+            if (throwable != null) {
+                LOGGER.error("Failed to capture the logs of the pod {}.", podName, throwable);
+                closeQuietly(logStream.get()); // Unblock the capture if it's still reading
+            }
+
+            afterCapture.run();
+        });
+    }
+
+    /**
+     * Called when the action run after the capture failed, for example when the pod couldn't be deleted.
+     * The next call to {@link #archive(KubernetesCluster, String, Runnable)} for the pod runs the action again
+     * without capturing the logs a second time.
+     */
+    public void actionFailed(String podName) {
+        failedPods.put(podName, System.currentTimeMillis());
+        handledPods.remove(podName);
+    }
+
+    public void stop() {
+        executor.shutdownNow();
+    }
+
+    private void capture(KubernetesCluster kubernetesCluster, String podName, long deadline, AtomicReference<InputStream> logStream) throws ApiException, IOException {
+        Path directory = rheniumConfig.getLogArchiveDirectory();
+        Files.createDirectories(directory);
+        Path archive = directory.resolve(podName + "-" + System.currentTimeMillis() + ARCHIVE_EXTENSION);
+
+        long maxSize = rheniumConfig.getLogArchiveMaxFileSize();
+        long written = 0;
+        PodLogs podLogs = new PodLogs(kubernetesCluster.getApiClient());
+        try (InputStream inputStream = podLogs.streamNamespacedPodLog(kubernetesCluster.getNamespace(), podName, ServerPodFactory.CONTAINER_NAME);
+             OutputStream outputStream = new GZIPOutputStream(Files.newOutputStream(archive))) {
+            logStream.set(inputStream);
+
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                if (System.currentTimeMillis() > deadline) {
+                    outputStream.write("\n[rhenium] Log capture timed out.\n".getBytes(StandardCharsets.UTF_8));
+                    break;
+                }
+
+                int toWrite = (int) Math.min(read, maxSize - written);
+                outputStream.write(buffer, 0, toWrite);
+                written += toWrite;
+
+                if (written >= maxSize) {
+                    outputStream.write("\n[rhenium] Log truncated, the maximum file size has been reached.\n".getBytes(StandardCharsets.UTF_8));
+                    break;
+                }
+            }
+        }
+
+        LOGGER.info("Stored the logs of the pod {} in {}.", podName, archive);
+        rotate(directory);
+    }
+
+    /**
+     * Deletes the oldest archives if there are more than the configured maximum.
+     */
+    private void rotate(Path directory) throws IOException {
+        List<Path> archives;
+        try (Stream<Path> files = Files.list(directory)) {
+            archives = files
+                .filter(path -> path.getFileName().toString().endsWith(ARCHIVE_EXTENSION))
+                .sorted(Comparator.comparingLong(PodLogArchiver::lastModified))
+                .toList();
+        }
+
+        int toDelete = archives.size() - rheniumConfig.getLogArchiveMaxFiles();
+        for (int i = 0; i < toDelete; i++) {
+            Files.deleteIfExists(archives.get(i));
+        }
+    }
+
+    private static long lastModified(Path path) {
+        try {
+            return Files.getLastModifiedTime(path).toMillis();
+        } catch (IOException exception) {
+            return 0;
+        }
+    }
+
+    private static void closeQuietly(InputStream inputStream) {
+        if (inputStream == null) return;
+
+        try {
+            inputStream.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package net.defade.rhenium.servers.scaling;
+
+import java.util.List;
+
+/**
+ * The actions decided by the scaling policy for a template.
+ *
+ * @param serversToReuse the draining servers that should accept players again
+ * @param serversToCreate the amount of servers to create
+ * @param serversToDrain the servers to schedule for deletion
+ * @param serversToStop the draining servers without players that can be stopped
+ */
+public record ScalingPlan(List<String> serversToReuse, int serversToCreate, List<String> serversToDrain, List<String> serversToStop) { }
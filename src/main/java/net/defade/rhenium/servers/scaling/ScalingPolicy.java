@@ -0,0 +1,177 @@
+package net.defade.rhenium.servers.scaling;
+
+import net.defade.rhenium.config.ScalingSettings;
+import net.defade.rhenium.config.ServerTemplate;
+import net.defade.rhenium.servers.instances.ServerState;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Decides how many servers a template needs from the state of its servers.
+ * Its only side effects are on the given {@link ScalingState}, so that it can be used both by the server manager
+ * and to replay recordings.
+ * <p>
+ * Scaling up happens as soon as servers are missing, while scaling down is damped by the {@link ScalingSettings}
+ * of the template so that an oscillating player count doesn't make servers be drained and reused repeatedly.
+ */
+public class ScalingPolicy {
+    private static final int MIN_SERVERS = 2;
+
+    private ScalingPolicy() { }
+
+    /**
+     * @param serverTemplate the template to scale
+     * @param servers the servers of the template
+     * @param pendingServers the amount of servers that have been created but whose pod doesn't exist yet
+     * @param idleTime the time in milliseconds since the template last had a player connected or waiting for a server
+     * @param scalingState the state of the template, updated with the decisions taken
+     * @param now the current time in milliseconds
+     */
+    public static ScalingPlan plan(ServerTemplate serverTemplate, List<ServerSnapshot> servers, int pendingServers, long idleTime,
+                                   ScalingState scalingState, long now) {
+        // Idle templates can be scaled to zero, a player waiting for a server resets the idle time which wakes the template up
+        boolean scaledToZero = serverTemplate.scaleToZeroAfter() > 0 && idleTime >= serverTemplate.scaleToZeroAfter();
+        int minServers = scaledToZero ? 0 : MIN_SERVERS;
+
+        // The states are updated as decisions are taken so that each step sees the decisions of the previous ones
+        Map<String, ServerState> states = new LinkedHashMap<>();
+        for (ServerSnapshot server : servers) {
+            states.put(server.serverId(), server.state());
+        }
+        scalingState.retainServers(states.keySet());
+
+        List<String> serversToReuse = new ArrayList<>();
+        int serversToCreate = scaleUp(serverTemplate, servers, pendingServers, minServers, states, serversToReuse);
+        if (serversToCreate > 0 || !serversToReuse.isEmpty()) {
+            scalingState.scaledUp(now, serversToCreate, serversToReuse.size());
+            for (String serverId : serversToReuse) {
+                flagChanged(serverTemplate, scalingState, serverId, now);
+            }
+        }
+
+        List<String> serversToDrain = scaleDown(serverTemplate, servers, minServers, states, scalingState, now);
+
+        List<String> serversToStop = new ArrayList<>();
+        for (ServerSnapshot server : servers) {
+            if (states.get(server.serverId()) == ServerState.DRAINING && server.onlinePlayers() == 0) {
+                serversToStop.add(server.serverId());
+            }
+        }
+        scalingState.scaledDown(serversToDrain.size(), serversToStop);
+
+        return new ScalingPlan(serversToReuse, serversToCreate, serversToDrain, serversToStop);
+    }
+
+    /**
+     * Checks if new servers are needed. Draining servers are reused before creating new ones.
+     *
+     * @return the amount of servers to create
+     */
+    private static int scaleUp(ServerTemplate serverTemplate, List<ServerSnapshot> servers, int pendingServers, int minServers,
+                               Map<String, ServerState> states, List<String> serversToReuse) {
+        int readyServers = (int) servers.stream()
+            .filter(server -> server.state() == ServerState.READY)
+            .filter(server -> server.onlinePlayers() < serverTemplate.maxPlayers())
+            .count();
+        // Servers that will soon be ready, including the ones whose pod doesn't exist yet
+        int provisioningServers = (int) servers.stream()
+            .filter(server -> server.state() == ServerState.PROVISIONING)
+            .count() + pendingServers;
+
+        int availableServers = readyServers + provisioningServers;
+        int serversToCreate = 0;
+
+        while (availableServers < minServers) {
+            // Before scheduling a server, try to check if a server that is scheduled for stopping can be started again
+            // This is done to avoid having to start a new server if we can reuse an old one
+            ServerSnapshot serverToReuse = null;
+            for (ServerSnapshot server : servers) {
+                if (states.get(server.serverId()) == ServerState.DRAINING) {
+                    serverToReuse = server;
+                    break;
+                }
+            }
+
+            if (serverToReuse != null) {
+                states.put(serverToReuse.serverId(), ServerState.READY);
+                serversToReuse.add(serverToReuse.serverId());
+            } else {
+                serversToCreate++;
+            }
+            availableServers++;
+        }
+
+        return serversToCreate;
+    }
+
+    /**
+     * Flags servers for deletion if there have been too many servers running compared to the demand for long enough.
+     * The servers that are too young or whose flag changed too often recently are kept.
+     *
+     * @return the servers to drain
+     */
+    private static List<String> scaleDown(ServerTemplate serverTemplate, List<ServerSnapshot> servers, int minServers,
+                                          Map<String, ServerState> states, ScalingState scalingState, long now) {
+        ScalingSettings scalingSettings = serverTemplate.scalingSettings();
+
+        List<ServerSnapshot> runningServers = new ArrayList<>();
+        int connectedPlayers = 0;
+        for (ServerSnapshot server : servers) {
+            ServerState state = states.get(server.serverId());
+            if (state == ServerState.DRAINING || state == ServerState.TERMINATING) continue;
+
+            runningServers.add(server);
+            connectedPlayers += server.onlinePlayers();
+        }
+
+        int serversNeeded = (int) Math.ceil((double) connectedPlayers / serverTemplate.maxPlayers()) + minServers;
+        int serversToRemove = runningServers.size() - serversNeeded;
+        if (serversToRemove <= 0) {
+            scalingState.surplusEnded(serversNeeded);
+            return List.of();
+        }
+
+        // Wait for the surplus to last and for the last scale up to settle before removing servers
+        scalingState.surplus(now, serversToRemove, serversNeeded);
+        if (now - scalingState.getSurplusSince() < scalingSettings.scaleDownDelay()
+            || now - scalingState.getLastScaleUpTime() < scalingSettings.scaleDownCooldown()) {
+            return List.of();
+        }
+
+        List<ServerSnapshot> candidates = runningServers.stream()
+            .filter(server -> now - server.creationTime() >= scalingSettings.minPodLifetime())
+            .filter(server -> !scalingState.isFlapping(server.serverId(), now, scalingSettings.flapWindow(), scalingSettings.maxFlaps()))
+            .collect(Collectors.toList());
+
+        // Find the servers with the least amount of players and flag them for deletion
+        List<String> serversToDrain = new ArrayList<>();
+        while (serversToRemove > 0) {
+            ServerSnapshot serverToRemove = null;
+            for (ServerSnapshot server : candidates) {
+                if (states.get(server.serverId()) == ServerState.DRAINING) continue;
+
+                if (serverToRemove == null || server.onlinePlayers() < serverToRemove.onlinePlayers()) {
+                    serverToRemove = server;
+                }
+            }
+
+            if (serverToRemove == null) break;
+
+            states.put(serverToRemove.serverId(), ServerState.DRAINING);
+            serversToDrain.add(serverToRemove.serverId());
+            flagChanged(serverTemplate, scalingState, serverToRemove.serverId(), now);
+            serversToRemove--;
+        }
+
+        if (!serversToDrain.isEmpty()) scalingState.surplusDrained();
+        return serversToDrain;
+    }
+
+    private static void flagChanged(ServerTemplate serverTemplate, ScalingState scalingState, String serverId, long now) {
+        ScalingSettings scalingSettings = serverTemplate.scalingSettings();
+        scalingState.flagChanged(serverId, now, scalingSettings.flapWindow(), scalingSettings.maxFlaps());
+    }
+}
@@ -0,0 +1,142 @@
+package net.defade.rhenium.servers.scaling;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * What the scaling policy remembers about a template between two reconciliations, and the churn metrics of the template.
+ * It's only accessed by the thread reconciling the template, the metrics can be read from any thread.
+ */
+public class ScalingState {
+    private long surplusSince = -1; // Since when there are too many servers, -1 if there aren't
+    private int peakSurplus = 0; // Highest amount of extra servers since surplusSince
+    private int lowestServersNeeded = Integer.MAX_VALUE; // Lowest amount of servers needed since surplusSince
+    private long lastScaleUpTime = Long.MIN_VALUE / 2;
+    private final Map<String, Deque<Long>> flagChanges = new HashMap<>(); // Server id -> times at which its deletion flag changed
+    private final Set<String> stoppedServers = new HashSet<>(); // Servers to stop whose pod still exists, counted once
+
+    private volatile ChurnMetrics churnMetrics = new ChurnMetrics(0, 0, 0, 0, 0, 0);
+
+    /**
+     * @return the amount of servers created, drained, reused and stopped, and the creations avoided by the damping
+     */
+    public ChurnMetrics getChurnMetrics() {
+        return churnMetrics;
+    }
+
+    long getSurplusSince() {
+        return surplusSince;
+    }
+
+    /**
+     * Called when there are too many servers.
+     *
+     * @param serversNeeded the amount of servers needed for the current demand
+     */
+    void surplus(long now, int surplus, int serversNeeded) {
+        if (surplusSince < 0) surplusSince = now;
+        peakSurplus = Math.max(peakSurplus, surplus);
+        lowestServersNeeded = Math.min(lowestServersNeeded, serversNeeded);
+    }
+
+    /**
+     * Called when there aren't too many servers anymore without any server drained. The servers kept during the
+     * scale-down delay that are needed again because the demand rose would have been stopped and created again
+     * without the delay. A surplus that ended because servers disappeared, for example after a crash, doesn't count.
+     *
+     * @param serversNeeded the amount of servers needed for the current demand
+     */
+    void surplusEnded(int serversNeeded) {
+        if (surplusSince >= 0) {
+            int serversNeededAgain = Math.min(peakSurplus, serversNeeded - lowestServersNeeded);
+            if (serversNeededAgain > 0) updateMetrics(0, 0, 0, 0, serversNeededAgain, 0);
+        }
+        resetSurplus();
+    }
+
+    /**
+     * Called when servers have been drained because of the surplus.
+     */
+    void surplusDrained() {
+        resetSurplus();
+    }
+
+    private void resetSurplus() {
+        surplusSince = -1;
+        peakSurplus = 0;
+        lowestServersNeeded = Integer.MAX_VALUE;
+    }
+
+    long getLastScaleUpTime() {
+        return lastScaleUpTime;
+    }
+
+    void scaledUp(long now, int created, int reused) {
+        lastScaleUpTime = now;
+        // Reusing a draining server avoids creating a new one
+        updateMetrics(created, 0, reused, 0, reused, 0);
+    }
+
+    /**
+     * @param stopped the servers to stop, the ones still listed because their pod hasn't been deleted yet are only counted once
+     */
+    void scaledDown(int drained, List<String> stopped) {
+        int newlyStopped = 0;
+        for (String serverId : stopped) {
+            if (stoppedServers.add(serverId)) newlyStopped++;
+        }
+        if (drained > 0 || newlyStopped > 0) updateMetrics(0, drained, 0, newlyStopped, 0, 0);
+    }
+
+    /**
+     * Records a change of the deletion flag of a server.
+     *
+     * @return if the server is now flapping
+     */
+    boolean flagChanged(String serverId, long now, long flapWindow, int maxFlaps) {
+        Deque<Long> changes = flagChanges.computeIfAbsent(serverId, id -> new ArrayDeque<>());
+        changes.add(now);
+        boolean flapping = isFlapping(serverId, now, flapWindow, maxFlaps);
+        if (flapping && changes.size() == maxFlaps) updateMetrics(0, 0, 0, 0, 0, 1);
+        return flapping;
+    }
+
+    boolean isFlapping(String serverId, long now, long flapWindow, int maxFlaps) {
+        Deque<Long> changes = flagChanges.get(serverId);
+        if (changes == null) return false;
+
+        while (!changes.isEmpty() && now - changes.peekFirst() > flapWindow) changes.pollFirst();
+        return changes.size() >= maxFlaps;
+    }
+
+    /**
+     * Forgets the servers that don't exist anymore.
+     */
+    void retainServers(Set<String> serverIds) {
+        flagChanges.keySet().retainAll(serverIds);
+        stoppedServers.retainAll(serverIds);
+    }
+
+    private void updateMetrics(int created, int drained, int reused, int stopped, int avoidedCreations, int flappingServers) {
+        ChurnMetrics metrics = churnMetrics;
+        churnMetrics = new ChurnMetrics(
+            metrics.created() + created,
+            metrics.drained() + drained,
+            metrics.reused() + reused,
+            metrics.stopped() + stopped,
+            metrics.avoidedCreations() + avoidedCreations,
+            metrics.flappingServers() + flappingServers
+        );
+    }
+
+    /**
+     * @param avoidedCreations the draining servers reused and the servers kept by the scale-down delay that were needed again
+     * @param flappingServers the amount of times a server has been detected as flapping and excluded from the scale down
+     */
+    public record ChurnMetrics(int created, int drained, int reused, int stopped, int avoidedCreations, int flappingServers) { }
+}
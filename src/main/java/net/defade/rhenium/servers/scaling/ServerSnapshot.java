@@ -0,0 +1,16 @@
+package net.defade.rhenium.servers.scaling;
+
+import net.defade.rhenium.servers.instances.ServerInstance;
+import net.defade.rhenium.servers.instances.ServerState;
+
+/**
+ * The state of a server as seen by the scaling policy.
+ *
+ * @param creationTime the time at which the pod of the server has been created, in milliseconds
+ */
+public record ServerSnapshot(String serverId, ServerState state, int onlinePlayers, long creationTime) {
+    public static ServerSnapshot of(ServerInstance serverInstance) {
+        return new ServerSnapshot(serverInstance.getServerId(), serverInstance.getState(), serverInstance.getOnlinePlayers(),
+            serverInstance.getCreationTime());
+    }
+}
@@ -0,0 +1,19 @@
+package net.defade.rhenium.utils;
+
+import java.io.IOException;
+
+/**
+ * Thrown when an HTTP request got a response with an unsuccessful status code.
+ */
+public class HttpStatusException extends IOException {
+    private final int statusCode;
+
+    public HttpStatusException(int statusCode) {
+        super("HTTP request failed with status code " + statusCode);
+        this.statusCode = statusCode;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+}
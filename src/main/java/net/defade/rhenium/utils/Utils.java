@@ -1,10 +1,9 @@
 package net.defade.rhenium.utils;
 
-import io.kubernetes.client.openapi.ApiException;
-import io.kubernetes.client.openapi.apis.CoreV1Api;
-import io.kubernetes.client.openapi.models.V1Pod;
-import io.kubernetes.client.openapi.models.V1PodList;
+import com.sun.net.httpserver.HttpExchange;
 import net.defade.rhenium.Rhenium;
+import net.defade.rhenium.notifications.NotificationPipeline;
+import net.defade.rhenium.profiling.HttpRequestEvent;
 import net.defade.rhenium.rest.RestServer;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -14,14 +13,20 @@ import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
+import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ForkJoinPool;;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 
 public class Utils {
     private static final Logger LOGGER = LogManager.getLogger(Utils.class);
 
+    public static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key"; // Lets the receiver ignore the retries of a request it already handled
+
     private static final String UNIQUE_ID_CHARS = "abcdefghijklmnopqrstuvwxyz0123456789";
+    private static final int HTTP_TIMEOUT = 5000;
+    private static final long VELOCITY_REQUEST_DEADLINE = 15 * 1000; // Same as the maximum time a player waits for a server
 
     public static String generateUniqueNetworkId(int size) {
         Random random = new Random();
@@ -34,44 +39,39 @@ public class Utils {
         return stringBuilder.toString();
     }
 
-    public static String getServerInstanceIp(CoreV1Api k8sApi, String namespace, String serverId) throws ApiException {
-        V1Pod pod = k8sApi.readNamespacedPod(serverId, namespace).execute();
-        if (pod == null) return null;
-
-        return pod.getStatus().getPodIP();
+    /**
+     * Sends a request to the Velocity proxy the player is connected to. The request is retried until its deadline,
+     * after the previous requests about the same player.
+     *
+     * @see net.defade.rhenium.proxies.ProxyRegistry#sendRequest(String, String, String, String, Map)
+     * @see NotificationPipeline
+     */
+    public static CompletableFuture<Void> sendHTTPRequestToVelocity(Rhenium rhenium, String playerUUID, String path, String method, String body) {
+        return rhenium.getNotificationPipeline().send("player:" + playerUUID, method + " " + path, VELOCITY_REQUEST_DEADLINE,
+            idempotencyKey -> rhenium.getProxyRegistry().sendRequest(playerUUID, path, method, body, Map.of(IDEMPOTENCY_KEY_HEADER, idempotencyKey)));
     }
 
-    public static CompletableFuture<Void> sendHTTPRequestToVelocity(Rhenium rhenium, String path, String method, String body) {
-        CompletableFuture<Void> future = new CompletableFuture<>();
-
-        ForkJoinPool.commonPool().execute(() -> {
-            try {
-                V1PodList podList = rhenium.getKubernetesClient().listNamespacedPod(rhenium.getRheniumConfig().getK8sNamespace())
-                    .labelSelector("app=velocity")
-                    .execute();
-
-                if (podList == null || podList.getItems().isEmpty()) {
-                    future.completeExceptionally(new IOException("Failed to find the Velocity pod"));
-                    return;
-                }
-
-                CompletableFuture<Void> httpFuture = sendHTTPRequest("http://" + podList.getItems().getFirst().getStatus().getPodIP() + ":6000" + path, method, body);
-                httpFuture.whenComplete((result, exception) -> {
-                    if (exception != null) future.completeExceptionally(exception);
-                    else future.complete(null);
-                });
-            } catch (ApiException exception) {
-                future.completeExceptionally(exception);
-            }
-        });
+    public static CompletableFuture<Void> sendHTTPRequest(String endpoint, String method, String body) {
+        return sendHTTPRequest(endpoint, method, body, Map.of(), ForkJoinPool.commonPool());
+    }
 
-        return future;
+    public static CompletableFuture<Void> sendHTTPRequest(String endpoint, String method, String body, Executor executor) {
+        return sendHTTPRequest(endpoint, method, body, Map.of(), executor);
     }
 
-    public static CompletableFuture<Void> sendHTTPRequest(String endpoint, String method, String body) {
+    /**
+     * @param headers additional headers of the request
+     * @param executor the executor the blocking request is done on
+     * @return a future completed exceptionally with an {@link HttpStatusException} if the status code isn't 2xx
+     */
+    public static CompletableFuture<Void> sendHTTPRequest(String endpoint, String method, String body, Map<String, String> headers, Executor executor) {
         CompletableFuture<Void> future = new CompletableFuture<>();
 
-        ForkJoinPool.commonPool().execute(() -> {
+        executor.execute(() -> {
+            HttpRequestEvent event = new HttpRequestEvent();
+            event.begin();
+            int statusCode = -1;
+
             try {
                 URL url = URI.create(endpoint).toURL();
                 HttpURLConnection connection = (HttpURLConnection) url.openConnection();
@@ -79,24 +79,52 @@ public class Utils {
                 connection.setRequestMethod(method);
                 connection.setRequestProperty("Content-Type", "application/json");
                 connection.setRequestProperty("Authorization", RestServer.AUTH_KEY);
-                connection.setDoOutput(true);
-
-                try (OutputStream outputStream = connection.getOutputStream()) {
-                    byte[] input = body.getBytes(StandardCharsets.UTF_8);
-                    outputStream.write(input, 0, input.length);
+                headers.forEach(connection::setRequestProperty);
+                connection.setConnectTimeout(HTTP_TIMEOUT);
+                connection.setReadTimeout(HTTP_TIMEOUT);
+
+                if (!method.equals("GET")) { // Writing a body would turn the request into a POST
+                    connection.setDoOutput(true);
+                    try (OutputStream outputStream = connection.getOutputStream()) {
+                        byte[] input = body.getBytes(StandardCharsets.UTF_8);
+                        outputStream.write(input, 0, input.length);
+                    }
                 }
 
+                statusCode = connection.getResponseCode();
                 connection.disconnect();
-                if (connection.getResponseCode() < 200 || connection.getResponseCode() >= 300) {
-                    future.completeExceptionally(new IOException("HTTP request failed with status code " + connection.getResponseCode()));
+                if (statusCode < 200 || statusCode >= 300) {
+                    future.completeExceptionally(new HttpStatusException(statusCode));
                 } else {
                     future.complete(null);
                 }
             } catch (IOException exception) {
                 future.completeExceptionally(exception);
+            } finally {
+                if (event.shouldCommit()) {
+                    event.url = endpoint;
+                    event.method = method;
+                    event.statusCode = statusCode;
+                    event.commit();
+                }
             }
         });
 
         return future;
     }
+
+    /**
+     * @return the value of a parameter of the query of the request, or the default value if it isn't set
+     */
+    public static String getQueryParameter(HttpExchange exchange, String name, String defaultValue) {
+        String query = exchange.getRequestURI().getQuery();
+        if (query == null) return defaultValue;
+
+        for (String parameter : query.split("&")) {
+            String[] keyValue = parameter.split("=", 2);
+            if (keyValue.length == 2 && keyValue[0].equals(name)) return keyValue[1];
+        }
+
+        return defaultValue;
+    }
 }